@@ -0,0 +1,46 @@
+package com.github.filter.helpers;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 没有传入traceId时生成新id的开销：原来拼字符串再算MD5，对比{@link TraceIdGenerator}。
+ * 运行：mvn -Pbench test-compile exec:exec -Dbench="TraceIdBenchmark -t 8 -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TraceIdBenchmark {
+  private final String serverIp = "10.1.2.3";
+  private final String uri = "/question/123456789.htm";
+  private final String query = "from=index&page=2";
+
+  @Benchmark
+  public String md5() {
+    StringBuilder sbd = new StringBuilder(128);
+    sbd.append(System.currentTimeMillis());
+    sbd.append(Thread.currentThread().getId());
+    sbd.append(serverIp);
+    sbd.append(uri).append(query);
+    return Hashing.md5().hashString(sbd.toString(), Charsets.UTF_8).toString();
+  }
+
+  @Benchmark
+  public String generator() {
+    return TraceIdGenerator.next();
+  }
+}
@@ -0,0 +1,80 @@
+package com.github.filter.io;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询串编码检测：原来逐段解码、靠异常判定的实现，对比单次扫描的{@link CharsetDetector}。
+ * 语料是常见的搜索和表单查询串，分别用UTF-8和GBK编码，GBK的查询串在原来的实现里要先抛一次异常再解一遍。
+ * 运行：mvn -Pbench test-compile exec:exec -Dbench="CharsetDetectorBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CharsetDetectorBenchmark {
+  private static final String[][] CORPUS = {
+      {"q=", "北京天气预报", "&ie=utf-8&from=index"},
+      {"wd=", "java 并发编程实战", "&rsv_spt=1&issp=1"},
+      {"keyword=", "手机壳 苹果", "&page=2&sort=price"},
+      {"title=", "如何评价《三体》", "&tag=", "小说"},
+      {"city=", "上海", "&district=", "浦东新区", "&type=1"},
+      {"name=", "张三", "&comment=", "東西很好，物流很快！"}};
+  @Param({"UTF-8", "GBK"})
+  public String charset;
+  private String[] queries;
+
+  @Setup
+  public void setup() {
+    Charset cs = Charset.forName(charset);
+    queries = new String[CORPUS.length];
+    for (int i = 0; i < CORPUS.length; i++) {
+      StringBuilder sbd = new StringBuilder();
+      for (int j = 0; j < CORPUS[i].length; j++) {
+        //偶数位置是参数名和分隔符，奇数位置是需要编码的取值
+        if ((j & 1) == 0) {
+          sbd.append(CORPUS[i][j]);
+        } else {
+          for (byte b : CORPUS[i][j].getBytes(cs)) {
+            sbd.append(String.format("%%%02X", b & 0xFF));
+          }
+        }
+      }
+      queries[i] = sbd.toString();
+    }
+    for (String q : queries) {
+      if (!charset.equals(CharsetDetector.detect(q))) {
+        throw new IllegalStateException("unexpected charset for " + q);
+      }
+    }
+  }
+
+  @Benchmark
+  public void legacy(Blackhole bh) {
+    for (String q : queries) {
+      bh.consume(LegacyCharsetDetector.detectURLCharset(q));
+    }
+  }
+
+  @Benchmark
+  public void detector(Blackhole bh) {
+    for (String q : queries) {
+      bh.consume(CharsetDetector.detect(q));
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.github.filter.reporter;
+
+import com.google.common.collect.Maps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Pattern;
+
+/**
+ * PageStatusReporter.stat的热点路径：原来的正则归一化加共享AtomicIntegerArray，对比现在的原始URI索引加分散计数器。
+ * 所有线程共用一张表，按下面的方式看1到64线程的扩展性：
+ * <pre>
+ * mvn -Pbench test-compile exec:exec -Dbench="StatBenchmark -t 1"
+ * mvn -Pbench test-compile exec:exec -Dbench="StatBenchmark -t 64"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatBenchmark {
+  /**
+   * 热点URI不多，大部分请求集中在少数几个页面上
+   */
+  private static final int HOT_URIS = 16;
+  private final String[] uris = new String[HOT_URIS];
+  private final Legacy legacy = new Legacy();
+  private final StatTable table = new StatTable();
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < HOT_URIS; i++) {
+      uris[i] = (i & 1) == 0 ? "/question/" + (1000 + i) + ".htm" : "/item/9e107d9d372bb6826bd81d3542a419d" + Integer.toHexString(i) + ".htm";
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+
+    String uri(String[] uris) {
+      return uris[next++ & (HOT_URIS - 1)];
+    }
+  }
+
+  @Benchmark
+  public void legacy(Cursor c) {
+    legacy.stat(c.uri(uris), 12, 200, false);
+  }
+
+  @Benchmark
+  public void striped(Cursor c) {
+    String raw = c.uri(uris);
+    UriCounter cnt = table.getByRawUri(raw);
+    if (cnt == null) {
+      cnt = table.getOrCreate(raw, UriNormalizer.cached(raw));
+    }
+    cnt.record(12000, 1000, 10000, 1000, 200, false);
+  }
+
+  /**
+   * 改造前的实现，每次都做两次正则替换，所有线程在同一个AtomicIntegerArray上CAS
+   */
+  static final class Legacy {
+    private static final Pattern NUM_PATTERN = Pattern.compile("[0-9]{2,}");
+    private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+    private final ConcurrentMap<String, AtomicIntegerArray> counters = Maps.newConcurrentMap();
+
+    void stat(String rawUri, long cost, int status, boolean isSpider) {
+      String uri = getFormalURI(rawUri);
+      AtomicIntegerArray cnt = counters.get(uri);
+      if (cnt == null) {
+        cnt = new AtomicIntegerArray(9);
+        AtomicIntegerArray old = counters.putIfAbsent(uri, cnt);
+        if (old != null) {
+          cnt = old;
+        }
+      }
+      cnt.incrementAndGet(0);
+      if (isSpider) {
+        cnt.incrementAndGet(1);
+      }
+      if (status >= 400 && !isSpider) {
+        cnt.incrementAndGet(2);
+      }
+      cnt.addAndGet(3, (int) cost);
+      if (status >= 500) {
+        cnt.incrementAndGet(4);
+      } else if (status >= 400) {
+        cnt.incrementAndGet(5);
+      } else if (status >= 300) {
+        cnt.incrementAndGet(6);
+      } else {
+        cnt.incrementAndGet(7);
+      }
+      if (status == 304) {
+        cnt.incrementAndGet(8);
+      }
+    }
+
+    private String getFormalURI(String uri) {
+      if (uri == null || uri.length() == 0 || uri.equals("/")) {
+        return "/";
+      }
+      int pos = uri.indexOf(';');
+      if (pos != -1) {
+        uri = uri.substring(0, pos);
+      }
+      String s = MD5_PATTERN.matcher(uri).replaceFirst("*");
+      if (s.length() != uri.length()) {
+        return s;
+      }
+      return NUM_PATTERN.matcher(uri).replaceAll("*");
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.github.filter.reporter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * URI归一化：原来的两次正则替换，对比单次扫描和带缓存的单次扫描。
+ * 运行：mvn -Pbench test-compile exec:exec -Dbench=UriNormalizerBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UriNormalizerBenchmark {
+  /**
+   * 常见的几类URI：纯静态、数字id、MD5前缀、带';'参数
+   */
+  private final String[] uris = {"/", "/index.htm", "/static/js/app.min.js", "/question/123456789.htm", "/user/42/answers/2015",
+      "/item/9e107d9d372bb6826bd81d3542a419d6.htm", "/list.do;jsessionid=A1B2C3D4E5", "/tag/java/page/12"};
+
+  @Benchmark
+  public void regex(Blackhole bh) {
+    for (String uri : uris) {
+      bh.consume(LegacyUriNormalizer.normalize(uri));
+    }
+  }
+
+  @Benchmark
+  public void scan(Blackhole bh) {
+    for (String uri : uris) {
+      bh.consume(UriNormalizer.normalize(uri));
+    }
+  }
+
+  @Benchmark
+  public void cached(Blackhole bh) {
+    for (String uri : uris) {
+      bh.consume(UriNormalizer.cached(uri));
+    }
+  }
+}
@@ -1,19 +1,29 @@
 package com.github.filter;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.rocketmq.common.message.Message;
-import com.github.autoconf.helper.ConfigHelper;
-import com.github.filter.helpers.FilterHelpers;
+import com.github.filter.cache.CachedResponse;
+import com.github.filter.cache.ResponseCache;
+import com.github.filter.helpers.ETags;
 import com.github.filter.helpers.Pair;
+import com.github.filter.helpers.RequestContext;
+import com.github.filter.helpers.SpiderClassifier;
+import com.github.filter.helpers.UrlPatterns;
 import com.github.filter.io.BufferedResponseWrapper;
 import com.github.filter.io.CharsetDetectRequestWrapper;
+import com.github.filter.io.CommitListener;
+import com.github.filter.io.CompressionCodec;
+import com.github.filter.io.CompressionCodecs;
+import com.github.filter.io.ResponseOptions;
+import com.github.filter.metrics.FilterMetrics;
+import com.github.filter.reporter.AccessLogQueue;
 import com.github.filter.reporter.PageStatusReporter;
+import com.github.filter.reporter.UriNormalizer;
+import com.github.filter.sampler.Sampler;
+import com.github.filter.sampler.Samplers;
 import com.github.trace.TraceContext;
-import com.github.trace.bean.AccessBean;
-import com.github.trace.sender.RocketMqSender;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,13 +32,14 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Set;
 
 /**
  * 核心Filter
  * Created by lirui on 2014/7/17.
  */
-public class CoreFilter implements Filter {
+public class CoreFilter implements Filter, CommitListener {
   private static final Logger LOG = LoggerFactory.getLogger(CoreFilter.class);
   private static final String alreadyFilteredAttributeName = "core-filter.FILTERED";
   private static Set<String> STATIC_POSTFIX;
@@ -39,24 +50,95 @@ public class CoreFilter implements Filter {
   }
 
   private boolean enableGZip = true;
+  private ResponseOptions options = new ResponseOptions();
+  /**
+   * 页面缓存，没有配置cacheSize时为null
+   */
+  private ResponseCache responseCache;
+  /**
+   * 需要自动生成ETag的URL
+   */
+  private UrlPatterns<String> etagPatterns = new UrlPatterns<>();
+  /**
+   * 非染色请求的采样策略，null表示只发送染色请求的日志
+   */
+  private Sampler sampler;
+  /**
+   * 输出filter自身统计指标的路径，不配置就不输出
+   */
+  private String metricsPath;
+  /**
+   * 表单POST请求体的缓存上限，缓存之后由CharsetDetectRequestWrapper识别编码并解析参数，0表示交给容器
+   */
+  private int formMaxBytes = 0;
 
   @Override
   public void init(FilterConfig conf) throws ServletException {
     if ("false".equalsIgnoreCase(conf.getInitParameter("gzip"))) {
       enableGZip = false;
     }
+    options = ResponseOptions.from(conf);
+    responseCache = ResponseCache.from(conf);
+    PageStatusReporter.getInstance().setResponseCache(responseCache);
+    FilterMetrics.getInstance().setResponseCache(responseCache);
+    int maxUris = intParam(conf, "statMaxUris", -1);
+    if (maxUris >= 0) {
+      PageStatusReporter.getInstance().setMaxUris(maxUris);
+    }
+    String format = conf.getInitParameter("statFormat");
+    if (!Strings.isNullOrEmpty(format)) {
+      PageStatusReporter.getInstance().setReportFormat(format.trim(), intParam(conf, "statBatchBytes", -1));
+    }
+    int interval = intParam(conf, "statInterval", -1);
+    if (interval > 0) {
+      PageStatusReporter.getInstance().setInterval(interval);
+    }
+    String spiders = conf.getInitParameter("spiderSignatures");
+    if (!Strings.isNullOrEmpty(spiders)) {
+      SpiderClassifier.getInstance().setSignatures(spiders, intParam(conf, "spiderCacheSize", -1));
+    }
+    etagPatterns = UrlPatterns.parse(conf.getInitParameter("etagPatterns"), "");
+    sampler = Samplers.from(conf);
+    formMaxBytes = Math.max(0, intParam(conf, "formMaxBytes", 0));
+    metricsPath = Strings.emptyToNull(Strings.nullToEmpty(conf.getInitParameter("metricsPath")).trim());
+    FilterMetrics.getInstance().register();
+    AccessLogQueue.getInstance().start();
+  }
+
+  private static int intParam(FilterConfig conf, String name, int defaultValue) {
+    String value = conf.getInitParameter(name);
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    Integer n = Ints.tryParse(value.trim());
+    if (n == null) {
+      LOG.error("illegal {}: {}", name, value);
+      return defaultValue;
+    }
+    return n;
   }
 
   @Override
   public void destroy() {
+    FilterMetrics.getInstance().unregister();
+    AccessLogQueue.getInstance().shutdown();
   }
 
   @Override
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
     HttpServletRequest req = (HttpServletRequest) request;
     HttpServletResponse res = (HttpServletResponse) response;
-    //设定请求开始时间
-    FilterHelpers.getRequestTime(req);
+    //设定请求开始时间，之后的请求状态都从ctx里直接读写
+    RequestContext ctx = RequestContext.get(req);
+    ctx.getRequestTime(req);
+
+    if (metricsPath != null && isMetricsRequest(req)) {
+      res.setContentType("text/plain;charset=UTF-8");
+      PrintWriter out = res.getWriter();
+      FilterMetrics.getInstance().writeTo(out);
+      out.flush();
+      return;
+    }
 
     if (request.getAttribute(alreadyFilteredAttributeName) != null || shouldNotFilter(req)) {
       // Proceed without invoking this filter...
@@ -64,19 +146,39 @@ public class CoreFilter implements Filter {
     } else {
       // Do invoke this filter...
       request.setAttribute(alreadyFilteredAttributeName, Boolean.TRUE);
-      CharsetDetectRequestWrapper reqWrapper = new CharsetDetectRequestWrapper(req);
-      boolean gzip = false;
-      //是否启用GZip压缩
+      FilterMetrics metrics = FilterMetrics.getInstance();
+      metrics.increment(FilterMetrics.REQUESTS);
+      CharsetDetectRequestWrapper reqWrapper = new CharsetDetectRequestWrapper(req, formMaxBytes);
+      String cacheKey = responseCache == null ? null : responseCache.keyOf(req);
+      if (cacheKey != null) {
+        CachedResponse cached = responseCache.get(cacheKey, req);
+        //染色请求需要完整的调用链，不走缓存
+        if (cached != null && !ctx.isColorized(reqWrapper)) {
+          serveCached(ctx, req, reqWrapper, res, cached);
+          return;
+        }
+      }
+      CompressionCodec codec = null;
+      int level = -1;
+      //是否启用压缩，按Accept-Encoding的q值选择算法
       if (enableGZip) {
-        String encoding = req.getHeader("Accept-Encoding");
-        if (encoding != null && encoding.contains("gzip")) {
-          gzip = true;
+        codec = options.negotiate(req.getHeader("Accept-Encoding"));
+        if (codec != null) {
+          level = options.levelFor(req.getRequestURI());
         }
       }
-      BufferedResponseWrapper resWrapper = new BufferedResponseWrapper(res, gzip);
+      BufferedResponseWrapper resWrapper = new BufferedResponseWrapper(res, options, codec, level, this);
+      String formalUri = null;
+      boolean sampled = false;
+      boolean failed = false;
       try {
         //XXX: 生成traceId，需要请求_traceId的参数，所以必须放到CharsetEncodingHandler后面
-        fillTraceContext(reqWrapper);
+        fillTraceContext(ctx, reqWrapper);
+        if (sampler != null && !TraceContext.get().isColor()) {
+          formalUri = UriNormalizer.cached(req.getRequestURI());
+          sampled = sampler.sampleOnEntry(req, formalUri);
+        }
+        ctx.markChainStart();
         chain.doFilter(reqWrapper, resWrapper);
         if (TraceContext.get().isColor()) {
           Cookie cookie = new Cookie("_color", "1");
@@ -86,37 +188,107 @@ public class CoreFilter implements Filter {
         }
       } catch (Exception e) {
         LOG.error("{}", req.getRequestURL(), e);
+        metrics.increment(FilterMetrics.ERRORS);
+        failed = true;
         resWrapper.setStatus(500);
         //这里把异常抛出去，针对服务端异常，接入层nginx可以统计到，否则就统计不到
         throw new ServletException(req.getRequestURL() + ", message: " + e.getMessage(), e.getCause());
       } finally {
+        ctx.markChainEnd();
         request.removeAttribute(alreadyFilteredAttributeName);
         try {
           if (resWrapper.getLocation() != null) {
+            metrics.increment(FilterMetrics.REDIRECTS);
             res.sendRedirect(resWrapper.getLocation());
           } else {
+            if (resWrapper.isError()) {
+              metrics.increment(FilterMetrics.ERRORS);
+            }
             setContentType(res);
             try {
-              copyResponse(res, resWrapper);
+              copyResponse(req, res, resWrapper);
+              if (cacheKey != null && !TraceContext.get().isColor()) {
+                responseCache.put(cacheKey, req, res, resWrapper);
+              }
             } catch (Exception e) {
-              long cost = FilterHelpers.getCostTime(req);
+              metrics.increment(FilterMetrics.COPY_FAILURES);
+              long cost = ctx.getCostTime();
               LOG.error("{}, cost={}ms", req.getRequestURL(), cost, e);
             }
           }
         } finally {
-          TraceContext c = TraceContext.get();
-          TraceContext.remove();
-          //染色日志发送到总线上
-          if (c.isColor()) {
-            sendTrace(req, c, resWrapper);
+          ctx.markDone();
+          try {
+            TraceContext c = TraceContext.get();
+            TraceContext.remove();
+            //缓存模式下容器拿不到业务设置的状态码，以wrapper为准，抛出异常的一律算500
+            int status = failed ? 500 : resWrapper.getStatus();
+            //染色日志以及采样到的日志发送到总线上
+            if (c.isColor() || (formalUri != null && sampler.sampleOnExit(req, formalUri, sampled, status, ctx.getCostTime()))) {
+              sendTrace(ctx, req, c, resWrapper);
+            }
+            //统计页面状态信息，包括各阶段的耗时
+            PageStatusReporter.getInstance().stat(req, ctx, status, c.isSpider());
+          } finally {
+            //缓存块和Deflater必须归还，否则会退化成每个请求都重新分配
+            resWrapper.release();
           }
-          //统计页面状态信息
-          PageStatusReporter.getInstance().stat(req, c.getCost(), res.getStatus(), c.isSpider());
         }
       }
     }
   }
 
+  /* 直接输出缓存的页面，不经过后续的filter和servlet */
+  private void serveCached(RequestContext ctx, HttpServletRequest req, CharsetDetectRequestWrapper reqWrapper, HttpServletResponse res, CachedResponse cached) {
+    try {
+      fillTraceContext(ctx, reqWrapper);
+      res.setStatus(cached.getStatus());
+      for (Pair<String, String> h : cached.getHeaders()) {
+        res.addHeader(h.first, h.second);
+      }
+      res.setContentType(cached.getContentType());
+      res.setHeader("Age", String.valueOf((System.currentTimeMillis() - cached.getCreated()) / 1000));
+      byte[] body = cached.getRaw();
+      String encoding = null;
+      if (enableGZip && cached.getGzip() != null && options.negotiate(req.getHeader("Accept-Encoding")) == CompressionCodecs.GZIP) {
+        body = cached.getGzip();
+        encoding = "gzip";
+      }
+      if (etagEnabled(req, res) && notModified(req, res, cached.getHash(), encoding)) {
+        res.flushBuffer();
+        return;
+      }
+      if (encoding != null) {
+        res.setHeader("Content-Encoding", encoding);
+      }
+      if (enableGZip) {
+        addVary(res);
+      }
+      String traceId = TraceContext.get().getTraceId();
+      if (!Strings.isNullOrEmpty(traceId)) {
+        res.setHeader("x-trace-id", traceId);
+      }
+      res.setContentLength(body.length);
+      res.getOutputStream().write(body);
+      res.flushBuffer();
+    } catch (Exception e) {
+      LOG.error("{}", req.getRequestURL(), e);
+    } finally {
+      ctx.markDone();
+      req.removeAttribute(alreadyFilteredAttributeName);
+      TraceContext c = TraceContext.get();
+      TraceContext.remove();
+      PageStatusReporter.getInstance().stat(req, ctx, res.getStatus(), c.isSpider());
+    }
+  }
+
+  /* 去掉contextPath之后和metricsPath相同 */
+  private boolean isMetricsRequest(HttpServletRequest req) {
+    String uri = req.getRequestURI();
+    String contextPath = Strings.nullToEmpty(req.getContextPath());
+    return uri != null && uri.length() == contextPath.length() + metricsPath.length() && uri.startsWith(contextPath) && uri.endsWith(metricsPath);
+  }
+
   /* 避免中文乱码 */
   private void setContentType(HttpServletResponse res) {
     String contentType = res.getContentType();
@@ -145,31 +317,11 @@ public class CoreFilter implements Filter {
   }
 
   /* 发送trace日志到总线上 */
-  private void sendTrace(HttpServletRequest req, TraceContext c, BufferedResponseWrapper res) {
-    AccessBean b = new AccessBean();
-    b.setStamp(FilterHelpers.getRequestTime(req));
-    b.setCost((int) FilterHelpers.getCostTime(req));
-    b.setTraceId(c.getTraceId());
-    b.setRpcId(c.getParentRpcId());
-    b.setClientIp(getRemoteIp(req));
-    b.setServerIp(ConfigHelper.getServerInnerIP());
-    b.setProfile(ConfigHelper.getProcessInfo().getProfile());
-    b.setCode(res.getStatus());
-    b.setSize(res.getLength());
-    b.setReferer(req.getHeader("Referer"));
-    b.setUserAgent(req.getHeader("User-Agent"));
-    b.setCookie(req.getHeader("Cookie"));
-    b.setUid(FilterHelpers.getUserId(req));
-    String url = req.getServerName();
-    if (req.getServerPort() != 80) {
-      url += ':' + req.getServerPort();
-    }
-    if (req.getQueryString() != null) {
-      url += '?' + req.getQueryString();
-    }
-    b.setUrl(url);
-    Message m = new Message("JinJingAccess", c.getTraceId(), JSON.toJSONBytes(b));
-    RocketMqSender.getInstance().asyncSend(m);
+  /**
+   * 只把字段复制到访问日志队列，构造AccessBean和发送都在后台线程里做
+   */
+  private void sendTrace(RequestContext ctx, HttpServletRequest req, TraceContext c, BufferedResponseWrapper res) {
+    AccessLogQueue.getInstance().offer(req, ctx, c.getTraceId(), c.getParentRpcId(), getRemoteIp(req), res.getStatus(), res.getLength());
   }
 
   /* 从request中获取IP, 首先从X-Forwarded-For的头信息中提取，否则取直连的IP. */
@@ -185,31 +337,95 @@ public class CoreFilter implements Filter {
     return r.getRemoteAddr();
   }
 
-  private void fillTraceContext(CharsetDetectRequestWrapper reqWrapper) {
+  private void fillTraceContext(RequestContext ctx, CharsetDetectRequestWrapper reqWrapper) {
     TraceContext traceContext = TraceContext.get();
-    Pair<String, String> traceAndStep = FilterHelpers.getTraceIdAndRpcId(reqWrapper);
+    Pair<String, String> traceAndStep = ctx.getTraceIdAndRpcId(reqWrapper);
     traceContext.setTraceId(traceAndStep.first);
     traceContext.setParentRpcId(traceAndStep.second);
-    traceContext.setSpider(FilterHelpers.isSpider(reqWrapper));
-    traceContext.setColor(FilterHelpers.isColorized(reqWrapper)).setFail(false);
+    traceContext.setSpider(ctx.isSpider(reqWrapper));
+    traceContext.setColor(ctx.isColorized(reqWrapper)).setFail(false);
+  }
+
+  /**
+   * 超过缓存阈值，开始流式输出前补全header
+   */
+  @Override
+  public void beforeCommit(BufferedResponseWrapper wrapper) throws IOException {
+    HttpServletResponse res = (HttpServletResponse) wrapper.getResponse();
+    setContentType(res);
+    writeHeaders(res, wrapper);
+  }
+
+  private void writeHeaders(HttpServletResponse res, BufferedResponseWrapper wrapper) {
+    if (wrapper.isGZipped()) {
+      res.setHeader("Content-Encoding", wrapper.getContentEncoding());
+    }
+    if (enableGZip) {
+      addVary(res);
+    }
+    String traceId = TraceContext.get().getTraceId();
+    if (!Strings.isNullOrEmpty(traceId)) {
+      res.setHeader("x-trace-id", traceId);
+    }
+  }
+
+  /* 响应内容随Accept-Encoding变化，告诉缓存服务器区分对待 */
+  private void addVary(HttpServletResponse res) {
+    String vary = res.getHeader("Vary");
+    if (Strings.isNullOrEmpty(vary)) {
+      res.setHeader("Vary", "Accept-Encoding");
+    } else if (!vary.equals("*") && !vary.toLowerCase().contains("accept-encoding")) {
+      res.setHeader("Vary", vary + ", Accept-Encoding");
+    }
+  }
+
+  /* 是否需要为当前响应生成ETag，业务代码自己设置了ETag时不处理 */
+  private boolean etagEnabled(HttpServletRequest req, HttpServletResponse res) {
+    if (etagPatterns.isEmpty() || res.containsHeader("ETag")) {
+      return false;
+    }
+    String method = req.getMethod();
+    return ("GET".equals(method) || "HEAD".equals(method)) && etagPatterns.match(req.getRequestURI()) != null;
+  }
+
+  /* 设置ETag，如果客户端缓存的内容没有变化就返回304 */
+  private boolean notModified(HttpServletRequest req, HttpServletResponse res, String hash, String encoding) {
+    res.setHeader("ETag", ETags.format(hash, encoding));
+    if (!ETags.matches(req.getHeader("If-None-Match"), hash)) {
+      return false;
+    }
+    res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    if (enableGZip) {
+      addVary(res);
+    }
+    String traceId = TraceContext.get().getTraceId();
+    if (!Strings.isNullOrEmpty(traceId)) {
+      res.setHeader("x-trace-id", traceId);
+    }
+    return true;
   }
 
-  private void copyResponse(HttpServletResponse res, BufferedResponseWrapper wrapper) throws IOException {
+  private void copyResponse(HttpServletRequest req, HttpServletResponse res, BufferedResponseWrapper wrapper) throws IOException {
+    wrapper.finish();
+    if (wrapper.isStreaming()) {
+      //header已经提交，只需要输出剩余内容
+      res.flushBuffer();
+      return;
+    }
     if (wrapper.isError()) {
       res.setContentType("text/html; charset=UTF-8");
       res.sendError(wrapper.getStatus());
     }
-    //发送响应内容
-    wrapper.flushBuffer();
-    if (wrapper.getLength() > 0) {
-      if (wrapper.isGZipped()) {
-        res.setHeader("Content-Encoding", "gzip");
-      }
+    //发送响应内容，304的判断只用原始内容的哈希，放在压缩之前，不输出内容就不用压缩
+    if (wrapper.getRawLength() > 0) {
       if (!res.isCommitted()) {
-        String traceId = TraceContext.get().getTraceId();
-        if (!Strings.isNullOrEmpty(traceId)) {
-          res.setHeader("x-trace-id", traceId);
+        if (!wrapper.isError() && wrapper.getStatus() == 200 && etagEnabled(req, res) && notModified(req, res, wrapper.getContentHash(), wrapper.getContentEncoding())) {
+          //页面统计和采样读的是wrapper的状态码，这里同步改成304
+          wrapper.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          res.flushBuffer();
+          return;
         }
+        writeHeaders(res, wrapper);
         res.setContentLength(wrapper.getLength());
         wrapper.writeTo(res.getOutputStream());
         res.flushBuffer();
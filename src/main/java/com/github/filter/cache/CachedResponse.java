@@ -0,0 +1,97 @@
+package com.github.filter.cache;
+
+import com.github.filter.helpers.Pair;
+
+import java.util.List;
+
+/**
+ * 缓存的响应内容，同时保存原始内容和gzip压缩后的内容
+ */
+public class CachedResponse {
+  private final int status;
+  private final String contentType;
+  private final List<Pair<String, String>> headers;
+  private final byte[] raw;
+  private final byte[] gzip;
+  private final String hash;
+  private final long created;
+  private final long expires;
+  private final String[] varyNames;
+  private final String[] varyValues;
+
+  CachedResponse(int status, String contentType, List<Pair<String, String>> headers, byte[] raw, byte[] gzip, String hash, long created, long expires, String[] varyNames, String[] varyValues) {
+    this.status = status;
+    this.contentType = contentType;
+    this.headers = headers;
+    this.raw = raw;
+    this.gzip = gzip;
+    this.hash = hash;
+    this.created = created;
+    this.expires = expires;
+    this.varyNames = varyNames;
+    this.varyValues = varyValues;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * 业务代码设置的header，不包括Content-Length、Content-Encoding等由filter生成的header
+   */
+  public List<Pair<String, String>> getHeaders() {
+    return headers;
+  }
+
+  public byte[] getRaw() {
+    return raw;
+  }
+
+  /**
+   * gzip压缩后的内容，不适合压缩时为null
+   */
+  public byte[] getGzip() {
+    return gzip;
+  }
+
+  /**
+   * 原始内容的哈希，用于生成ETag
+   */
+  public String getHash() {
+    return hash;
+  }
+
+  public long getCreated() {
+    return created;
+  }
+
+  public long getExpires() {
+    return expires;
+  }
+
+  String[] getVaryNames() {
+    return varyNames;
+  }
+
+  String[] getVaryValues() {
+    return varyValues;
+  }
+
+  /**
+   * 估算占用的内存
+   */
+  int weight() {
+    int w = 256 + raw.length;
+    if (gzip != null) {
+      w += gzip.length;
+    }
+    for (Pair<String, String> h : headers) {
+      w += (h.first.length() + h.second.length()) * 2;
+    }
+    return w;
+  }
+}
@@ -0,0 +1,316 @@
+package com.github.filter.cache;
+
+import com.github.filter.helpers.Pair;
+import com.github.filter.helpers.UrlPatterns;
+import com.github.filter.io.BufferedResponseWrapper;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可缓存GET页面的内存缓存，只有业务代码通过Cache-Control: max-age声明可缓存的响应才会保存。
+ * 按字节数限制大小，淘汰最近最少使用的页面
+ */
+public class ResponseCache {
+  private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
+  /**
+   * 由filter在每次输出时重新生成，或者不应该重放的header，ETag和编码相关，命中时重新生成
+   */
+  private static final Set<String> SKIP_HEADERS = ImmutableSet.of("content-length", "content-encoding", "content-type", "x-trace-id", "date", "age", "transfer-encoding", "etag");
+  /**
+   * 每次请求都不同，不参与缓存key的参数
+   */
+  private static final Set<String> SKIP_PARAMS = ImmutableSet.of("_traceId", "_color");
+  /**
+   * 最多记录多少个页面的Vary header
+   */
+  private static final int MAX_VARY_KEYS = 10000;
+  private final Cache<String, CachedResponse> cache;
+  /**
+   * 页面最近一次响应的Vary header，查找时把请求里对应的值拼进key，不同的变体分别缓存
+   */
+  private final Cache<String, String[]> varyNames;
+  private final AtomicLong bytes = new AtomicLong();
+  private final UrlPatterns<String> patterns;
+  private final long maxAgeSeconds;
+
+  private ResponseCache(long maxBytes, long maxAgeSeconds, UrlPatterns<String> patterns) {
+    this.maxAgeSeconds = maxAgeSeconds;
+    this.patterns = patterns;
+    this.cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<String, CachedResponse>() {
+      @Override
+      public int weigh(String key, CachedResponse value) {
+        return key.length() * 2 + value.weight();
+      }
+    }).removalListener(new RemovalListener<String, CachedResponse>() {
+      @Override
+      public void onRemoval(RemovalNotification<String, CachedResponse> n) {
+        bytes.addAndGet(-(n.getKey().length() * 2 + n.getValue().weight()));
+      }
+    }).expireAfterWrite(maxAgeSeconds, TimeUnit.SECONDS).recordStats().build();
+    this.varyNames = CacheBuilder.newBuilder().maximumSize(MAX_VARY_KEYS).expireAfterWrite(maxAgeSeconds, TimeUnit.SECONDS).build();
+  }
+
+  /**
+   * 读取配置，cacheSize大于0时才启用：
+   * <ul>
+   * <li>cacheSize: 缓存占用的最大字节数</li>
+   * <li>cacheMaxAge: 最长缓存秒数，默认600，业务设置的max-age超过时按这个值</li>
+   * <li>cachePatterns: 允许缓存的URL，默认所有</li>
+   * </ul>
+   *
+   * @param conf filter配置
+   * @return 没有启用时返回null
+   */
+  public static ResponseCache from(FilterConfig conf) {
+    long maxBytes = parseLong(conf.getInitParameter("cacheSize"), 0);
+    if (maxBytes <= 0) {
+      return null;
+    }
+    long maxAge = parseLong(conf.getInitParameter("cacheMaxAge"), 600);
+    String spec = conf.getInitParameter("cachePatterns");
+    UrlPatterns<String> patterns = UrlPatterns.parse(Strings.isNullOrEmpty(spec) ? "/*" : spec, "");
+    return new ResponseCache(maxBytes, maxAge, patterns);
+  }
+
+  private static long parseLong(String value, long defaultValue) {
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      LOG.error("illegal number: {}", value);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * 计算缓存key，由host、去掉';'参数的uri以及排序后的query串组成
+   *
+   * @param req 请求对象
+   * @return 不能缓存的请求返回null
+   */
+  public String keyOf(HttpServletRequest req) {
+    if (!"GET".equals(req.getMethod()) || req.getHeader("Authorization") != null) {
+      return null;
+    }
+    String uri = req.getRequestURI();
+    int pos = uri.indexOf(';');
+    if (pos != -1) {
+      uri = uri.substring(0, pos);
+    }
+    if (patterns.match(uri) == null) {
+      return null;
+    }
+    StringBuilder sbd = new StringBuilder(128);
+    sbd.append(req.getServerName()).append(uri);
+    String query = req.getQueryString();
+    if (!Strings.isNullOrEmpty(query)) {
+      List<String> params = Lists.newArrayList();
+      for (String p : Splitter.on('&').omitEmptyStrings().split(query)) {
+        int eq = p.indexOf('=');
+        if (!SKIP_PARAMS.contains(eq == -1 ? p : p.substring(0, eq))) {
+          params.add(p);
+        }
+      }
+      Collections.sort(params);
+      char sep = '?';
+      for (String p : params) {
+        sbd.append(sep).append(p);
+        sep = '&';
+      }
+    }
+    return sbd.toString();
+  }
+
+  /**
+   * 查找缓存，过期或者Vary的header不匹配时返回null
+   *
+   * @param key keyOf返回的key
+   * @param req 请求对象
+   * @return 缓存的响应
+   */
+  public CachedResponse get(String key, HttpServletRequest req) {
+    String[] vary = varyNames.getIfPresent(key);
+    if (vary != null) {
+      key = variantKey(key, vary, req);
+    }
+    CachedResponse cached = cache.getIfPresent(key);
+    if (cached == null) {
+      return null;
+    }
+    if (cached.getExpires() < System.currentTimeMillis()) {
+      cache.invalidate(key);
+      return null;
+    }
+    String[] names = cached.getVaryNames();
+    for (int i = 0; i < names.length; i++) {
+      if (!Objects.equal(req.getHeader(names[i]), cached.getVaryValues()[i])) {
+        return null;
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * 保存刚刚输出完的响应，只保存状态码为200并且声明了max-age的响应
+   *
+   * @param key     keyOf返回的key
+   * @param req     请求对象
+   * @param res     原始的响应对象
+   * @param wrapper 缓存了响应内容的对象
+   */
+  public void put(String key, HttpServletRequest req, HttpServletResponse res, BufferedResponseWrapper wrapper) {
+    if (wrapper.getStatus() != 200 || wrapper.isError() || wrapper.getLocation() != null || wrapper.isStreaming()) {
+      return;
+    }
+    long ttl = maxAge(res.getHeader("Cache-Control"));
+    if (ttl <= 0 || res.containsHeader("Set-Cookie")) {
+      return;
+    }
+    List<String> varying = Lists.newArrayList();
+    String vary = res.getHeader("Vary");
+    if (vary != null) {
+      for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(vary)) {
+        if (name.equals("*")) {
+          return;
+        }
+        if (!name.equalsIgnoreCase("Accept-Encoding")) {
+          varying.add(name);
+        }
+      }
+    }
+    String[] names = varying.toArray(new String[varying.size()]);
+    String[] values = new String[names.length];
+    for (int i = 0; i < names.length; i++) {
+      values[i] = req.getHeader(names[i]);
+    }
+    if (names.length > 0) {
+      varyNames.put(key, names);
+      key = variantKey(key, names, req);
+    } else {
+      varyNames.invalidate(key);
+    }
+    ImmutableList.Builder<Pair<String, String>> headers = ImmutableList.builder();
+    Collection<String> headerNames = res.getHeaderNames();
+    if (headerNames != null) {
+      for (String name : headerNames) {
+        if (!SKIP_HEADERS.contains(name.toLowerCase())) {
+          for (String value : res.getHeaders(name)) {
+            headers.add(Pair.build(name, value));
+          }
+        }
+      }
+    }
+    try {
+      long now = System.currentTimeMillis();
+      CachedResponse cached = new CachedResponse(200, res.getContentType(), headers.build(), wrapper.getRawBytes(), wrapper.getGzipBytes(), wrapper.getContentHash(), now, now + Math.min(ttl, maxAgeSeconds) * 1000, names, values);
+      cache.put(key, cached);
+      bytes.addAndGet(key.length() * 2 + cached.weight());
+    } catch (Exception e) {
+      LOG.error("cannot cache {}", key, e);
+    }
+  }
+
+  /**
+   * 在key后面依次拼上Vary的header和请求里的取值，没有这个header和取值为空字符串区分开
+   */
+  private static String variantKey(String key, String[] names, HttpServletRequest req) {
+    StringBuilder sbd = new StringBuilder(key.length() + names.length * 32).append(key);
+    for (String name : names) {
+      sbd.append('\n').append(name.toLowerCase()).append(':');
+      String value = req.getHeader(name);
+      if (value != null) {
+        sbd.append('=').append(value);
+      }
+    }
+    return sbd.toString();
+  }
+
+  /**
+   * 解析Cache-Control中的max-age，s-maxage优先
+   *
+   * @return 不可缓存时返回0
+   */
+  static long maxAge(String cacheControl) {
+    if (Strings.isNullOrEmpty(cacheControl)) {
+      return 0;
+    }
+    String cc = cacheControl.toLowerCase();
+    if (cc.contains("no-store") || cc.contains("no-cache") || cc.contains("private")) {
+      return 0;
+    }
+    long age = directive(cc, "s-maxage=");
+    return age > 0 ? age : directive(cc, "max-age=");
+  }
+
+  private static long directive(String cc, String name) {
+    int pos = cc.indexOf(name);
+    if (pos == -1) {
+      return 0;
+    }
+    long v = 0;
+    for (int i = pos + name.length(); i < cc.length(); i++) {
+      char c = cc.charAt(i);
+      if (c < '0' || c > '9') {
+        break;
+      }
+      v = v * 10 + (c - '0');
+    }
+    return v;
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * 缓存的页面个数
+   */
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * 缓存占用的字节数
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats s = cache.stats();
+    final StringBuilder sb = new StringBuilder("ResponseCache{");
+    sb.append("entries=").append(cache.size());
+    sb.append(", bytes=").append(bytes.get());
+    sb.append(", hitRate=").append(String.format("%.4f", s.hitRate()));
+    sb.append(", hits=").append(s.hitCount());
+    sb.append(", misses=").append(s.missCount());
+    sb.append(", evictions=").append(s.evictionCount());
+    sb.append('}');
+    return sb.toString();
+  }
+}
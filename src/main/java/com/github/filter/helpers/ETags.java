@@ -0,0 +1,68 @@
+package com.github.filter.helpers;
+
+/**
+ * ETag的生成和比较。未压缩的响应使用强ETag "hash"，压缩后的响应在后面加上编码名 "hash-gzip"，
+ * 这样不同编码的表示不会共用同一个强ETag；比较If-None-Match时按弱比较，只看内容哈希
+ */
+public final class ETags {
+  private ETags() {
+  }
+
+  /**
+   * 生成ETag头的值
+   *
+   * @param hash     内容哈希
+   * @param encoding 压缩算法，没有压缩时为null
+   * @return 带引号的ETag
+   */
+  public static String format(String hash, String encoding) {
+    if (encoding == null) {
+      return '"' + hash + '"';
+    }
+    return '"' + hash + '-' + encoding + '"';
+  }
+
+  /**
+   * 判断If-None-Match是否匹配当前内容
+   *
+   * @param ifNoneMatch 请求头If-None-Match
+   * @param hash        当前内容的哈希
+   * @return 匹配时可以返回304
+   */
+  public static boolean matches(String ifNoneMatch, String hash) {
+    if (ifNoneMatch == null || hash == null) {
+      return false;
+    }
+    int len = ifNoneMatch.length();
+    int start = 0;
+    while (start < len) {
+      int end = ifNoneMatch.indexOf(',', start);
+      if (end == -1) {
+        end = len;
+      }
+      int b = start, e = end;
+      while (b < e && ifNoneMatch.charAt(b) == ' ') {
+        b++;
+      }
+      while (e > b && ifNoneMatch.charAt(e - 1) == ' ') {
+        e--;
+      }
+      if (e - b == 1 && ifNoneMatch.charAt(b) == '*') {
+        return true;
+      }
+      if (ifNoneMatch.startsWith("W/", b)) {
+        b += 2;
+      }
+      if (e - b >= 2 && ifNoneMatch.charAt(b) == '"' && ifNoneMatch.charAt(e - 1) == '"') {
+        b++;
+        e--;
+      }
+      //去掉-gzip之类的编码后缀
+      if (e - b >= hash.length() && ifNoneMatch.startsWith(hash, b) && (e - b == hash.length() || ifNoneMatch.charAt(b + hash.length()) == '-')) {
+        return true;
+      }
+      start = end + 1;
+    }
+    return false;
+  }
+}
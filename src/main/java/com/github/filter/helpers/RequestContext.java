@@ -0,0 +1,229 @@
+package com.github.filter.helpers;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个请求的状态，只占一个request属性，请求开始时间、爬虫、染色、traceId等都是普通字段，
+ * 耗时用nanoTime分阶段记录：进入filter、开始调用后续filter、后续filter返回、响应输出完。
+ * 上下文建好之后只读写字段，不再经过容器的getAttribute；只有setXxx和拆分出来的traceId会同步写一份到原来的request属性，
+ * 兼容直接读属性的页面和其他filter。
+ * 只在处理请求的线程里读写，不需要同步
+ */
+public final class RequestContext {
+  public static final String ATTRIBUTE = "core-filter.CONTEXT";
+  private static final byte UNKNOWN = 0;
+  private static final byte YES = 1;
+  private static final byte NO = 2;
+  private long requestTime;
+  private long entryNanos;
+  private long chainStartNanos;
+  private long chainEndNanos;
+  private long doneNanos;
+  private byte spider = UNKNOWN;
+  private byte colorized = UNKNOWN;
+  private String traceId;
+  private String rpcId;
+  private String userId;
+
+  private RequestContext() {
+  }
+
+  /**
+   * 获取请求对应的上下文，没有就新建一个
+   *
+   * @param request 请求对象
+   * @return 请求上下文
+   */
+  public static RequestContext get(HttpServletRequest request) {
+    Object obj = request.getAttribute(ATTRIBUTE);
+    if (obj instanceof RequestContext) {
+      return (RequestContext) obj;
+    }
+    RequestContext ctx = new RequestContext();
+    //兼容前面的filter直接设置的开始时间，这时真正的开始时间更早，不能用nanoTime计时
+    Long time = FilterHelpers.getAttribute(request, FilterHelpers.REQUEST_TIME_ATTRIBUTE);
+    if (time != null) {
+      ctx.requestTime = time;
+    }
+    request.setAttribute(ATTRIBUTE, ctx);
+    return ctx;
+  }
+
+  private static byte toFlag(Boolean value) {
+    return value == null ? UNKNOWN : (value ? YES : NO);
+  }
+
+  /**
+   * 获取请求开始时间，如果没有就重设为当前时间
+   */
+  public long getRequestTime(HttpServletRequest request) {
+    if (requestTime == 0) {
+      requestTime = System.currentTimeMillis();
+      entryNanos = System.nanoTime();
+    }
+    return requestTime;
+  }
+
+  /**
+   * 获取当前请求的服务端处理时间
+   *
+   * @return 如果没有设定开始时间，则返回-1
+   */
+  public long getCostTime() {
+    if (entryNanos != 0) {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entryNanos);
+    }
+    if (requestTime == 0) {
+      return -1;
+    }
+    return System.currentTimeMillis() - requestTime;
+  }
+
+  /**
+   * 开始调用后续filter
+   */
+  public void markChainStart() {
+    chainStartNanos = System.nanoTime();
+  }
+
+  /**
+   * 后续filter返回，包括抛出异常
+   */
+  public void markChainEnd() {
+    chainEndNanos = System.nanoTime();
+  }
+
+  /**
+   * 响应已经输出完
+   */
+  public void markDone() {
+    doneNanos = System.nanoTime();
+  }
+
+  /**
+   * 总耗时，输出完之前调用就是到目前为止的耗时
+   *
+   * @return 微秒，没有设定开始时间时返回-1
+   */
+  public long getCostMicros() {
+    if (entryNanos == 0) {
+      long cost = getCostTime();
+      return cost < 0 ? -1 : cost * 1000;
+    }
+    return micros(entryNanos, doneNanos != 0 ? doneNanos : System.nanoTime());
+  }
+
+  /**
+   * 进入filter到开始调用后续filter的耗时，微秒
+   */
+  public long getPreChainMicros() {
+    return entryNanos == 0 ? 0 : micros(entryNanos, chainStartNanos);
+  }
+
+  /**
+   * 后续filter和servlet的耗时，微秒
+   */
+  public long getChainMicros() {
+    return micros(chainStartNanos, chainEndNanos);
+  }
+
+  /**
+   * 后续filter返回到响应输出完的耗时，主要是缓存和压缩，微秒
+   */
+  public long getCopyMicros() {
+    return micros(chainEndNanos, doneNanos);
+  }
+
+  private static long micros(long start, long end) {
+    if (start == 0 || end == 0) {
+      return 0;
+    }
+    return TimeUnit.NANOSECONDS.toMicros(end - start);
+  }
+
+  /**
+   * 判定是否为爬虫，结果会缓存下来，同一个UA的判定结果由{@link SpiderClassifier}缓存
+   */
+  public boolean isSpider(HttpServletRequest request) {
+    if (spider == UNKNOWN) {
+      spider = toFlag(SpiderClassifier.getInstance().isSpider(request.getHeader("User-Agent")));
+    }
+    return spider == YES;
+  }
+
+  public void setSpider(HttpServletRequest request, Boolean spider) {
+    this.spider = toFlag(spider);
+    request.setAttribute(FilterHelpers.IS_SPIDER_ATTRIBUTE, spider);
+  }
+
+  /**
+   * 判断当前请求是否需要染色，结果会缓存下来
+   */
+  public boolean isColorized(HttpServletRequest request) {
+    if (colorized == UNKNOWN) {
+      boolean value = request.getParameter("_color") != null || request.getHeader("X-MONITOR") != null;
+      if (!value) {
+        String cookie = request.getHeader("Cookie");
+        value = cookie != null && cookie.contains("; _cookie=1");
+      }
+      colorized = toFlag(value);
+    }
+    return colorized == YES;
+  }
+
+  public void setColorized(HttpServletRequest request, Boolean colorized) {
+    this.colorized = toFlag(colorized);
+    request.setAttribute(FilterHelpers.IS_COLOR_ATTRIBUTE, colorized);
+  }
+
+  /**
+   * 获取traceId，如果从header或者参数传过来，则直接用，否则就生成一个。
+   * 拆分过rpcId之后返回的是不带rpcId的部分
+   */
+  public String getTraceId(HttpServletRequest request) {
+    if (traceId == null) {
+      // 如果是ajax请求，可以通过js透传变量，这样能够把多个ajax请求聚合到一个traceId下
+      // 优先从header中获取
+      String id = request.getHeader("x-trace-id");
+      if (id == null || id.length() < 16) {
+        id = request.getParameter("_traceId");
+      }
+      if (id == null || id.length() < 16) {
+        id = TraceIdGenerator.next();
+      }
+      traceId = id;
+    }
+    return traceId;
+  }
+
+  /**
+   * 同时获取traceId和rpcId，ajax会通过':'区分请求的step编号。
+   * 拆分之后把traceId写一份到{@link FilterHelpers#TRACE_ID_ATTRIBUTE}，兼容直接读属性的页面，每个请求只写这一次
+   */
+  public Pair<String, String> getTraceIdAndRpcId(HttpServletRequest request) {
+    if (rpcId == null) {
+      String raw = getTraceId(request);
+      rpcId = "0";
+      int pos = raw.lastIndexOf(':');
+      if (pos > 0) {
+        traceId = raw.substring(0, pos);
+        int begin = pos + 1;
+        if (begin < raw.length()) {
+          rpcId = raw.substring(begin);
+        }
+      }
+      request.setAttribute(FilterHelpers.TRACE_ID_ATTRIBUTE, traceId);
+    }
+    return Pair.build(traceId, rpcId);
+  }
+
+  public String getUserId(HttpServletRequest request) {
+    return userId;
+  }
+
+  public void setUserId(HttpServletRequest request, String userId) {
+    this.userId = userId;
+    request.setAttribute(FilterHelpers.USER_ID_ATTRIBUTE, userId);
+  }
+}
@@ -0,0 +1,170 @@
+package com.github.filter.helpers;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 根据User-Agent判定爬虫。所有特征串编译成一个Aho-Corasick自动机，扫描一遍UA就能知道是否包含其中任何一个，
+ * 匹配时逐个字符转小写，不生成小写的副本。不同的UA个数有限，判定结果按UA缓存，爬虫和正常浏览器都缓存
+ */
+public final class SpiderClassifier {
+  private static final Logger LOG = LoggerFactory.getLogger(SpiderClassifier.class);
+  public static final String DEFAULT_SIGNATURES = "spider,bot";
+  private static final int DEFAULT_CACHE_SIZE = 4096;
+  private static final SpiderClassifier INSTANCE = new SpiderClassifier();
+  private volatile Rules rules = new Rules(DEFAULT_SIGNATURES, DEFAULT_CACHE_SIZE);
+
+  private SpiderClassifier() {
+  }
+
+  public static SpiderClassifier getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * 设定爬虫特征，替换之后之前缓存的结果都作废
+   *
+   * @param signatures 逗号分隔的特征串，不区分大小写，只支持ASCII字符，为空时用默认的spider,bot
+   * @param cacheSize  缓存的UA个数，小于等于0表示用默认值
+   */
+  public void setSignatures(String signatures, int cacheSize) {
+    if (signatures == null || signatures.trim().isEmpty()) {
+      signatures = DEFAULT_SIGNATURES;
+    }
+    rules = new Rules(signatures, cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * 判定UA是否是爬虫
+   *
+   * @param ua User-Agent，null表示不是爬虫
+   * @return UA包含任何一个特征串就是爬虫
+   */
+  public boolean isSpider(String ua) {
+    if (ua == null) {
+      return false;
+    }
+    Rules r = rules;
+    Boolean verdict = r.verdicts.getIfPresent(ua);
+    if (verdict == null) {
+      verdict = r.matches(ua);
+      r.verdicts.put(ua, verdict);
+    }
+    return verdict;
+  }
+
+  /**
+   * 编译好的自动机和对应的缓存，一起替换
+   */
+  private static final class Rules {
+    private static final int ALPHABET = 128;
+    /**
+     * 状态转移表，已经把失败指针展开，每个字符只需要查一次表
+     */
+    private final int[][] next;
+    /**
+     * 到达这个状态时是否已经匹配到某个特征串
+     */
+    private final boolean[] accept;
+    private final Cache<String, Boolean> verdicts;
+
+    Rules(String signatures, int cacheSize) {
+      List<String> words = Lists.newArrayList();
+      for (String s : Splitter.on(',').trimResults().omitEmptyStrings().split(signatures)) {
+        if (isAscii(s)) {
+          words.add(s);
+        } else {
+          LOG.error("ignore non-ascii spider signature: {}", s);
+        }
+      }
+      int max = 1;
+      for (String w : words) {
+        max += w.length();
+      }
+      int[][] trie = new int[max][];
+      boolean[] out = new boolean[max];
+      trie[0] = new int[ALPHABET];
+      Arrays.fill(trie[0], -1);
+      int states = 1;
+      for (String w : words) {
+        int s = 0;
+        for (int i = 0; i < w.length(); i++) {
+          int c = lower(w.charAt(i));
+          if (trie[s][c] < 0) {
+            trie[states] = new int[ALPHABET];
+            Arrays.fill(trie[states], -1);
+            trie[s][c] = states++;
+          }
+          s = trie[s][c];
+        }
+        out[s] = true;
+      }
+      //按广度优先计算失败指针，同时把缺失的转移补成失败指针的转移
+      int[] fail = new int[states];
+      int[] queue = new int[states];
+      int head = 0, tail = 0;
+      for (int c = 0; c < ALPHABET; c++) {
+        int t = trie[0][c];
+        if (t < 0) {
+          trie[0][c] = 0;
+        } else {
+          fail[t] = 0;
+          queue[tail++] = t;
+        }
+      }
+      while (head < tail) {
+        int s = queue[head++];
+        out[s] |= out[fail[s]];
+        for (int c = 0; c < ALPHABET; c++) {
+          int t = trie[s][c];
+          if (t < 0) {
+            trie[s][c] = trie[fail[s]][c];
+          } else {
+            fail[t] = trie[fail[s]][c];
+            queue[tail++] = t;
+          }
+        }
+      }
+      this.next = Arrays.copyOf(trie, states);
+      this.accept = Arrays.copyOf(out, states);
+      this.verdicts = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    boolean matches(String ua) {
+      int s = 0;
+      for (int i = 0, n = ua.length(); i < n; i++) {
+        char ch = ua.charAt(i);
+        if (ch >= ALPHABET) {
+          //特征串都是ASCII，遇到其他字符肯定匹配不下去
+          s = 0;
+          continue;
+        }
+        s = next[s][lower(ch)];
+        if (accept[s]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static int lower(char c) {
+      return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static boolean isAscii(String s) {
+      for (int i = 0; i < s.length(); i++) {
+        if (s.charAt(i) >= ALPHABET) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.github.filter.helpers;
+
+import com.github.autoconf.helper.ConfigHelper;
+import com.google.common.primitives.Ints;
+
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 生成32位16进制的traceId，和原来MD5的长度一样：
+ * 12位毫秒时间戳 + 8位机器IP + 4位进程标识 + 8位自增序号。
+ * 进程标识由进程号和每个进程启动时的随机盐混合而成，容器里的进程号经常都是1，同一个IP上的多个容器靠随机盐区分。
+ * 同一进程同一毫秒内要生成超过2^32个id才会重复，不加锁，也不用做哈希
+ */
+public final class TraceIdGenerator {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final TraceIdGenerator INSTANCE;
+  private final int node;
+  private final int process;
+  private final AtomicInteger seq;
+
+  static {
+    SecureRandom random = new SecureRandom();
+    INSTANCE = new TraceIdGenerator(nodeId(random), processId(random), random.nextInt(), random.nextInt());
+  }
+
+  /**
+   * @param node 机器标识，一般是IPv4地址
+   * @param pid  进程号
+   * @param salt 进程启动时生成的随机数
+   * @param seq  序号的初始值
+   */
+  TraceIdGenerator(int node, int pid, int salt, int seq) {
+    this.node = node;
+    this.process = mix(pid, salt);
+    this.seq = new AtomicInteger(seq);
+  }
+
+  /**
+   * 把进程号和随机盐混合成16位，只截取进程号的低16位时，进程号相同的容器必然冲突
+   */
+  static int mix(int pid, int salt) {
+    int h = (pid ^ salt) * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & 0xFFFF;
+  }
+
+  private static int nodeId(SecureRandom random) {
+    try {
+      String ip = ConfigHelper.getServerInnerIP();
+      if (ip != null) {
+        String[] parts = ip.trim().split("\\.");
+        if (parts.length == 4) {
+          int node = 0;
+          for (String p : parts) {
+            Integer n = Ints.tryParse(p);
+            if (n == null || n < 0 || n > 255) {
+              return random.nextInt();
+            }
+            node = (node << 8) | n;
+          }
+          return node;
+        }
+      }
+    } catch (Throwable ignored) {
+    }
+    return random.nextInt();
+  }
+
+  private static int processId(SecureRandom random) {
+    try {
+      //RuntimeMXBean的名字是pid@hostname
+      String name = ManagementFactory.getRuntimeMXBean().getName();
+      int pos = name.indexOf('@');
+      if (pos > 0) {
+        Integer pid = Ints.tryParse(name.substring(0, pos));
+        if (pid != null) {
+          return pid;
+        }
+      }
+    } catch (Throwable ignored) {
+    }
+    return random.nextInt();
+  }
+
+  /**
+   * 生成新的traceId
+   *
+   * @return 32位16进制字符串
+   */
+  public static String next() {
+    return INSTANCE.nextId(System.currentTimeMillis());
+  }
+
+  static String next(long time, int seq) {
+    return INSTANCE.format(time, seq);
+  }
+
+  String nextId(long time) {
+    return format(time, seq.getAndIncrement());
+  }
+
+  private String format(long time, int seq) {
+    char[] buf = new char[32];
+    fill(buf, 0, time, 12);
+    fill(buf, 12, node, 8);
+    fill(buf, 20, process, 4);
+    fill(buf, 24, seq, 8);
+    return new String(buf);
+  }
+
+  private static void fill(char[] buf, int offset, long value, int digits) {
+    for (int i = offset + digits - 1; i >= offset; i--) {
+      buf[i] = HEX[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+  }
+}
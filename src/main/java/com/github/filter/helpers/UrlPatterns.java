@@ -0,0 +1,96 @@
+package com.github.filter.helpers;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按servlet规则匹配URL：精确匹配、"/prefix/*"前缀匹配(最长优先)、"*.ext"后缀匹配以及"/*"全匹配
+ */
+public final class UrlPatterns<V> {
+  private final Map<String, V> exact = Maps.newHashMap();
+  private final Map<String, V> extensions = Maps.newHashMap();
+  private final List<Pair<String, V>> prefixes = Lists.newArrayList();
+  private V all;
+
+  /**
+   * 解析"pattern:value,pattern:value"格式的配置，value为null表示只有pattern
+   *
+   * @param spec  配置串，可以为null
+   * @param value 没有写value时的默认值
+   * @return 解析出来的规则集合
+   */
+  public static UrlPatterns<String> parse(String spec, String value) {
+    UrlPatterns<String> patterns = new UrlPatterns<>();
+    if (spec == null) {
+      return patterns;
+    }
+    for (String item : Splitter.on(',').trimResults().omitEmptyStrings().split(spec)) {
+      int pos = item.lastIndexOf(':');
+      if (pos > 0) {
+        patterns.add(item.substring(0, pos).trim(), item.substring(pos + 1).trim());
+      } else {
+        patterns.add(item, value);
+      }
+    }
+    return patterns;
+  }
+
+  public void add(String pattern, V value) {
+    if (pattern.equals("/*") || pattern.equals("*")) {
+      all = value;
+    } else if (pattern.endsWith("/*")) {
+      prefixes.add(Pair.build(pattern.substring(0, pattern.length() - 1), value));
+      Collections.sort(prefixes, new Comparator<Pair<String, V>>() {
+        @Override
+        public int compare(Pair<String, V> o1, Pair<String, V> o2) {
+          return o2.first.length() - o1.first.length();
+        }
+      });
+    } else if (pattern.startsWith("*.")) {
+      extensions.put(pattern.substring(2), value);
+    } else {
+      exact.put(pattern, value);
+    }
+  }
+
+  /**
+   * 查找uri匹配的值
+   *
+   * @param uri 请求的uri
+   * @return 没有匹配返回null
+   */
+  public V match(String uri) {
+    if (uri == null) {
+      return all;
+    }
+    V v = exact.get(uri);
+    if (v != null) {
+      return v;
+    }
+    for (Pair<String, V> p : prefixes) {
+      if (uri.startsWith(p.first) || uri.length() + 1 == p.first.length() && p.first.startsWith(uri)) {
+        return p.second;
+      }
+    }
+    if (!extensions.isEmpty()) {
+      int pos = uri.lastIndexOf('.');
+      if (pos != -1 && uri.indexOf('/', pos) == -1) {
+        v = extensions.get(uri.substring(pos + 1));
+        if (v != null) {
+          return v;
+        }
+      }
+    }
+    return all;
+  }
+
+  public boolean isEmpty() {
+    return all == null && exact.isEmpty() && extensions.isEmpty() && prefixes.isEmpty();
+  }
+}
@@ -0,0 +1,155 @@
+package com.github.filter.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 响应缓存的byte[]池，按线程分段，每段内按大小分级回收，避免每个请求都重新分配和扩容
+ */
+public final class BufferPool {
+  /**
+   * 分级的块大小，缓存会依次使用这几种大小的块
+   */
+  static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024};
+  /**
+   * 每一段中，每个级别最多缓存的块数
+   */
+  private static final int[] MAX_PER_STRIPE = {32, 16, 8};
+  private static final BufferPool INSTANCE = new BufferPool();
+  private final Stripe[] stripes;
+  private final int mask;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong bytesHeld = new AtomicLong();
+
+  private BufferPool() {
+    int n = 1;
+    int cpu = Runtime.getRuntime().availableProcessors();
+    while (n < cpu && n < 16) {
+      n <<= 1;
+    }
+    stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe();
+    }
+    mask = n - 1;
+  }
+
+  public static BufferPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * 获取一个指定级别的块，池里没有就新分配
+   *
+   * @param sizeClass 大小级别，超出范围按最大级别处理
+   * @return 长度为对应级别大小的byte数组
+   */
+  public byte[] acquire(int sizeClass) {
+    int idx = Math.min(sizeClass, SIZE_CLASSES.length - 1);
+    byte[] buf = stripe().pop(idx);
+    if (buf != null) {
+      hits.incrementAndGet();
+      bytesHeld.addAndGet(-buf.length);
+      return buf;
+    }
+    misses.incrementAndGet();
+    return new byte[SIZE_CLASSES[idx]];
+  }
+
+  /**
+   * 归还一个块，长度不属于任何级别或者池已满时直接丢弃
+   *
+   * @param buf 之前通过acquire获取的块
+   */
+  public void release(byte[] buf) {
+    if (buf == null) {
+      return;
+    }
+    int idx = sizeClassOf(buf.length);
+    if (idx >= 0 && stripe().push(idx, buf)) {
+      bytesHeld.addAndGet(buf.length);
+    }
+  }
+
+  private static int sizeClassOf(int length) {
+    for (int i = 0; i < SIZE_CLASSES.length; i++) {
+      if (SIZE_CLASSES[i] == length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private Stripe stripe() {
+    return stripes[(int) Thread.currentThread().getId() & mask];
+  }
+
+  /**
+   * 从池里拿到块的次数
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * 池里没有块需要新分配的次数
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * 池里当前缓存的字节数
+   */
+  public long getBytesHeld() {
+    return bytesHeld.get();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("BufferPool{");
+    sb.append("stripes=").append(stripes.length);
+    sb.append(", hits=").append(hits.get());
+    sb.append(", misses=").append(misses.get());
+    sb.append(", bytesHeld=").append(bytesHeld.get());
+    sb.append('}');
+    return sb.toString();
+  }
+
+  /**
+   * 一个分段，每个级别一个定长的栈
+   */
+  private static final class Stripe {
+    private final byte[][][] stacks = new byte[SIZE_CLASSES.length][][];
+    private final int[] tops = new int[SIZE_CLASSES.length];
+
+    Stripe() {
+      for (int i = 0; i < stacks.length; i++) {
+        stacks[i] = new byte[MAX_PER_STRIPE[i]][];
+      }
+    }
+
+    synchronized byte[] pop(int idx) {
+      int top = tops[idx];
+      if (top == 0) {
+        return null;
+      }
+      byte[][] stack = stacks[idx];
+      byte[] buf = stack[--top];
+      stack[top] = null;
+      tops[idx] = top;
+      return buf;
+    }
+
+    synchronized boolean push(int idx, byte[] buf) {
+      int top = tops[idx];
+      byte[][] stack = stacks[idx];
+      if (top == stack.length) {
+        return false;
+      }
+      stack[top] = buf;
+      tops[idx] = top + 1;
+      return true;
+    }
+  }
+}
@@ -1,30 +1,55 @@
 package com.github.filter.io;
 
+import com.github.filter.metrics.FilterMetrics;
 import com.google.common.base.Strings;
+import com.google.common.primitives.Longs;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.*;
 import java.nio.charset.Charset;
-import java.util.zip.GZIPInputStream;
 
 /**
- * 缓存响应信息，便于统计以及做response内容的修改
+ * 缓存响应信息，便于统计以及做response内容的修改。
+ * 缓存的是未压缩的原始内容，在输出时才根据最终大小和contentType决定是否压缩
  * Created by lirui on 2014/7/17.
  */
 public class BufferedResponseWrapper extends HttpServletResponseWrapper {
   private static final String NAME_ISO_8859_1 = "iso-8859-1";
   private static final String NAME_UTF_8 = "UTF-8";
-  private final boolean GZipped;
+  private static final String CONTENT_LENGTH = "Content-Length";
+  private final CompressionCodec codec;
   private Charset UTF8 = Charset.forName(NAME_UTF_8);
   private PrintWriter writer;
-  private UnsafeByteArrayOutputStream out;
-  private GZipStream zipStream;
+  private final ResponseOptions options;
+  private final int level;
+  private final CommitListener listener;
+  private ResponseBuffer out;
+  private ThresholdOutputStream stream;
+  /**
+   * 压缩后的内容，只有缓存模式下决定压缩、并且真正需要输出内容时才生成
+   */
+  private ResponseBuffer zipped;
+  /**
+   * 流式输出时实际写到容器的字节数
+   */
+  private CountingOutputStream sent;
+  /**
+   * 流式输出时的压缩流
+   */
+  private OutputStream zipStream;
+  /**
+   * 业务代码设置的Content-Length，对应的是未压缩的内容，-1表示没有设置
+   */
+  private long contentLength = -1;
   private int status = 200;
   private String location = null;
   private String errorMessage = null;
   private boolean error = false;
+  private boolean streaming = false;
+  private boolean compressed = false;
+  private boolean finished = false;
 
   /**
    * Constructs a response adaptor wrapping the given response.
@@ -41,17 +66,28 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
    * @param response 响应对象
    */
   public BufferedResponseWrapper(HttpServletResponse response, boolean GZipped) {
+    this(response, new ResponseOptions(), GZipped ? CompressionCodecs.GZIP : null, -1, null);
+  }
+
+  /**
+   * Constructs a response adaptor wrapping the given response.
+   *
+   * @param response 响应对象
+   * @param options  缓存和压缩的配置
+   * @param codec    协商出来的压缩算法，null表示不压缩
+   * @param level    压缩级别
+   * @param listener 超过缓存阈值、提交header前的回调，可以为null
+   */
+  public BufferedResponseWrapper(HttpServletResponse response, ResponseOptions options, CompressionCodec codec, int level, CommitListener listener) {
     super(response);
     //设定一个较大的值，否则一旦header过多，就会出错
     response.setBufferSize(8192);
-    this.GZipped = GZipped;
-    out = new UnsafeByteArrayOutputStream(16 * 1024);
-    if (GZipped) {
-      try {
-        zipStream = new GZipStream(out);
-      } catch (IOException ignored) {
-      }
-    }
+    this.codec = codec;
+    this.options = options;
+    this.level = level;
+    this.listener = listener;
+    out = ResponseBuffer.create(options);
+    stream = new ThresholdOutputStream(out, this, options.getStreamThreshold());
   }
 
   @Override
@@ -74,46 +110,203 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
 
   @Override
   public ServletOutputStream getOutputStream() throws IOException {
-    return GZipped ? zipStream : out;
+    return stream;
   }
 
+  /**
+   * 业务代码调用时只把writer里的内容刷到缓存，流式输出时再刷到容器，之后还可以继续写
+   */
   @Override
   public void flushBuffer() throws IOException {
     if (writer != null) {
       writer.flush();
     }
-    if (GZipped) {
-      zipStream.finish();
+    stream.flush();
+  }
+
+  /**
+   * 内容全部写完之后由CoreFilter调用，之后不能再写入。
+   * 缓存模式下只决定是否压缩，真正的压缩推迟到输出内容时，返回304时就不用压缩；流式模式下写完压缩的尾部数据
+   */
+  public void finish() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+    if (streaming) {
+      if (!finished) {
+        finished = true;
+        if (compressed) {
+          zipStream.close();
+          CompressionStats.getInstance().record(getContentType(), stream.size(), sent.getCount());
+        }
+      }
+      stream.flush();
+    } else if (!finished) {
+      finished = true;
+      FilterMetrics.getInstance().add(FilterMetrics.BYTES_BUFFERED, out.size());
+      compressed = shouldCompress(out.size());
+      if (out.size() == 0 && contentLength >= 0) {
+        //HEAD之类没有内容的响应，业务设置的长度原样传下去
+        super.setContentLengthLong(contentLength);
+      }
     }
-    out.flush();
+  }
+
+  private boolean shouldCompress(int size) {
+    return codec != null && options.shouldCompress(getContentType(), size) && !containsHeader("Content-Encoding");
+  }
+
+  /**
+   * 已经决定压缩的缓存内容，第一次用到时才压缩
+   */
+  private ResponseBuffer zipped() throws IOException {
+    if (zipped == null) {
+      compress();
+    }
+    return zipped;
+  }
+
+  private void compress() throws IOException {
+    FilterMetrics metrics = FilterMetrics.getInstance();
+    long cpu = metrics.threadCpuTime();
+    ResponseBuffer buf = ResponseBuffer.create(options);
+    OutputStream z = codec.compress(buf, level, options.strategyFor(getContentType()));
+    boolean done = false;
+    try {
+      out.writeTo(z);
+      z.close();
+      done = true;
+    } finally {
+      PooledDeflaterOutputStream.release(z);
+      metrics.addCpuTime(FilterMetrics.COMPRESS_CPU_NANOS, cpu);
+      if (!done) {
+        buf.release();
+      }
+    }
+    zipped = buf;
+    CompressionStats.getInstance().record(getContentType(), out.size(), zipped.size());
+  }
+
+  /**
+   * 超过缓存阈值时调用，决定是否压缩，提交状态码和header，返回后续内容的输出流
+   */
+  OutputStream commit() throws IOException {
+    streaming = true;
+    FilterMetrics.getInstance().increment(FilterMetrics.STREAMED);
+    //超过阈值的内容已经足够大，只需要看contentType
+    compressed = shouldCompress(Integer.MAX_VALUE);
+    //压缩之后长度和业务设置的不一样，只有不压缩时才把Content-Length传下去
+    if (!compressed && contentLength >= 0) {
+      super.setContentLengthLong(contentLength);
+    }
+    super.setStatus(status);
+    if (listener != null) {
+      listener.beforeCommit(this);
+    }
+    sent = new CountingOutputStream(getResponse().getOutputStream());
+    if (compressed) {
+      zipStream = codec.compress(sent, level, options.strategyFor(getContentType()));
+      return zipStream;
+    }
+    return sent;
   }
 
   @Override
   public void reset() {
+    if (streaming) {
+      throw new IllegalStateException("response already committed");
+    }
     status = 200;
+    contentLength = -1;
     location = null;
     error = false;
     errorMessage = null;
 
-    if (GZipped) {
-      try {
-        out.reset();
-        zipStream = new GZipStream(out);
-      } catch (IOException ignored) {
-      }
+    stream.reset();
+    if (zipped != null) {
+      zipped.release();
+      zipped = null;
+    }
+    compressed = false;
+    finished = false;
+  }
+
+  /**
+   * 缓存模式下先记下来，输出时由CoreFilter按实际长度设置；流式输出压缩内容时丢弃
+   */
+  @Override
+  public void setContentLength(int len) {
+    setContentLengthLong(len);
+  }
+
+  @Override
+  public void setContentLengthLong(long len) {
+    if (!streaming) {
+      contentLength = len;
+    } else if (!compressed) {
+      super.setContentLengthLong(len);
+    }
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      setContentLengthHeader(value);
+    } else {
+      super.setHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      setContentLengthHeader(value);
     } else {
-      out.reset();
+      super.addHeader(name, value);
+    }
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      setContentLengthLong(value);
+    } else {
+      super.setIntHeader(name, value);
+    }
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      setContentLengthLong(value);
+    } else {
+      super.addIntHeader(name, value);
+    }
+  }
+
+  private void setContentLengthHeader(String value) {
+    Long len = value == null ? null : Longs.tryParse(value.trim());
+    if (len != null) {
+      setContentLengthLong(len);
     }
   }
 
   @Override
   public void sendError(int sc) throws IOException {
-    trySendError(sc, null);
+    if (streaming) {
+      super.sendError(sc);
+    } else {
+      trySendError(sc, null);
+    }
   }
 
   @Override
   public void sendError(int sc, String msg) throws IOException {
-    trySendError(sc, msg);
+    if (streaming) {
+      super.sendError(sc, msg);
+    } else {
+      trySendError(sc, msg);
+    }
   }
 
   private void trySendError(int sc, String msg) {
@@ -124,32 +317,25 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
 
   @Override
   public void sendRedirect(String location) throws IOException {
+    if (streaming) {
+      super.sendRedirect(location);
+      return;
+    }
     status = 302;
     this.location = location;
   }
 
   /**
-   * 返回响应的HTML内容
+   * 返回目前为止响应的HTML内容，不影响后续的写入，已经流式输出的响应只能拿到空串
    */
   public String getContent() {
-    try {
-      flushBuffer();
-    } catch (IOException ignored) {
-    }
-    if (GZipped) {
-      ByteArrayOutputStream o = new ByteArrayOutputStream();
-      try {
-        GZIPInputStream in = new GZIPInputStream(out.asByteArrayInputStream());
-        int i;
-        while ((i = in.read()) != -1) {
-          o.write(i);
-        }
-      } catch (IOException ignored) {
-      }
-      return new String(o.toByteArray(), getEncodingCharset());
-    } else {
-      return out.toString(getEncodingCharset());
+    if (writer != null) {
+      writer.flush();
     }
+    if (streaming) {
+      return "";
+    }
+    return out.toString(getEncodingCharset());
   }
 
   /**
@@ -159,7 +345,55 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
    * @throws IOException
    */
   public void writeTo(OutputStream o) throws IOException {
-    out.writeTo(o);
+    (compressed ? zipped() : out).writeTo(o);
+  }
+
+  /**
+   * 根据压缩前的原始内容计算哈希，用于生成ETag
+   */
+  public String getContentHash() throws IOException {
+    HashOutputStream hash = new HashOutputStream();
+    out.writeTo(hash);
+    return hash.toHex();
+  }
+
+  /**
+   * 压缩前的原始内容
+   */
+  public byte[] getRawBytes() {
+    return out.toByteArray();
+  }
+
+  /**
+   * gzip压缩后的内容，如果本次输出没有用gzip则单独压缩一次；不适合压缩的内容返回null
+   */
+  public byte[] getGzipBytes() throws IOException {
+    if (compressed && codec == CompressionCodecs.GZIP) {
+      return zipped().toByteArray();
+    }
+    if (!options.shouldCompress(getContentType(), out.size())) {
+      return null;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(out.size() / 4);
+    OutputStream z = CompressionCodecs.GZIP.compress(bytes, options.getLevel(), options.strategyFor(getContentType()));
+    try {
+      out.writeTo(z);
+      z.close();
+    } finally {
+      PooledDeflaterOutputStream.release(z);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * 把缓存块和压缩用的Deflater归还给对应的池，响应输出完之后调用
+   */
+  public void release() {
+    PooledDeflaterOutputStream.release(zipStream);
+    out.release();
+    if (zipped != null) {
+      zipped.release();
+    }
   }
 
   private Charset getEncodingCharset() {
@@ -199,10 +433,34 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
   }
 
   /**
-   * 返回响应的内容长度
+   * 返回响应的内容长度，压缩时是压缩后的长度
    */
   public int getLength() {
-    return out.size();
+    if (streaming) {
+      return sent.getCount();
+    }
+    if (!compressed) {
+      return out.size();
+    }
+    try {
+      return zipped().size();
+    } catch (IOException e) {
+      throw new IllegalStateException("compress response failed", e);
+    }
+  }
+
+  /**
+   * 返回压缩前的内容长度
+   */
+  public int getRawLength() {
+    return stream.size();
+  }
+
+  /**
+   * 是否超过缓存阈值，已经直接输出到容器
+   */
+  public boolean isStreaming() {
+    return streaming;
   }
 
   /**
@@ -220,10 +478,17 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
   }
 
   /**
-   * 是否做了GZIP压缩
+   * 是否做了压缩，finish或者开始流式输出之后才能确定
    */
   public boolean isGZipped() {
-    return GZipped;
+    return compressed;
+  }
+
+  /**
+   * 压缩算法对应的Content-Encoding，不压缩时返回null
+   */
+  public String getContentEncoding() {
+    return compressed ? codec.getEncoding() : null;
   }
 
   /**
@@ -238,6 +503,8 @@ public class BufferedResponseWrapper extends HttpServletResponseWrapper {
     final StringBuilder sb = new StringBuilder("BufferedResponseWrapper{");
     sb.append("status=").append(status);
     sb.append(", error=").append(error);
+    sb.append(", streaming=").append(streaming);
+    sb.append(", compressed=").append(compressed);
     sb.append(", location='").append(location).append('\'');
     sb.append(", errorMessage='").append(errorMessage).append('\'');
     sb.append('}');
@@ -0,0 +1,59 @@
+package com.github.filter.io;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * 重放已经读出来的请求体
+ */
+class ByteArrayServletInputStream extends ServletInputStream {
+  private final byte[] buf;
+  private int pos = 0;
+
+  ByteArrayServletInputStream(byte[] buf) {
+    this.buf = buf;
+  }
+
+  @Override
+  public int read() {
+    return pos < buf.length ? buf[pos++] & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (pos >= buf.length) {
+      return -1;
+    }
+    int n = Math.min(len, buf.length - pos);
+    System.arraycopy(buf, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    int k = (int) Math.max(0, Math.min(n, buf.length - pos));
+    pos += k;
+    return k;
+  }
+
+  @Override
+  public int available() {
+    return buf.length - pos;
+  }
+
+  @Override
+  public boolean isFinished() {
+    return pos >= buf.length;
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setReadListener(ReadListener readListener) {
+    throw new UnsupportedOperationException(getClass().getName() + " not support setReadListener: " + readListener);
+  }
+}
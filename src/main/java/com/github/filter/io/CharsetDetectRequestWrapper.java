@@ -1,26 +1,28 @@
 package com.github.filter.io;
 
 import com.github.filter.CoreFilter;
+import com.github.filter.metrics.FilterMetrics;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.io.*;
 import java.nio.charset.*;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * 在tomcat下，配置不好容易出乱码信息，这里统一处理一下编码解析。如果发现获取的String是乱码，就重新解析query串
+ * 在tomcat下，配置不好容易出乱码信息，这里统一处理一下编码解析。如果发现获取的String是乱码，就重新解析query串。
+ * 长度已知且不超过上限的表单POST会先把请求体读到内存里，和query串一起识别编码、自己解析参数，不再交给容器解析，
+ * getInputStream和getReader重放读出来的内容
  * Created by lirui on 2015/04/23 下午1:59.
  */
 public class CharsetDetectRequestWrapper extends HttpServletRequestWrapper {
@@ -29,23 +31,24 @@ public class CharsetDetectRequestWrapper extends HttpServletRequestWrapper {
   private static final Logger log = LoggerFactory.getLogger(CoreFilter.class);
   private static final Pattern pattern = Pattern.compile("\\b(?:ie|enc|encoding)=(gbk|utf8|utf-8|gb2312|gb18030)\\b", Pattern.CASE_INSENSITIVE);
   private static final Map<String, Charset> chars = Maps.newHashMap();
-  private static final int[] HEX2BYTE_CONVERT = new int[256];
-
-  static {
-    for (int i = 0; i < 256; i++) {
-      if (i >= 'A' && i <= 'F') {
-        HEX2BYTE_CONVERT[i] = i - 'A' + 10;
-      } else if (i >= 'a' && i <= 'f') {
-        HEX2BYTE_CONVERT[i] = i - 'a' + 10;
-      } else if (i >= '0' && i <= '9') {
-        HEX2BYTE_CONVERT[i] = i - '0';
-      } else {
-        HEX2BYTE_CONVERT[i] = 0;
-      }
-    }
-  }
+  private static final String FORM_TYPE = "application/x-www-form-urlencoded";
+  private static final byte[] NO_BODY = new byte[0];
 
   private String encoding = null;
+  private RawQuery rawQuery;
+  private Map<String, String[]> parameterMap;
+  /**
+   * 表单请求体的缓存上限，0表示不缓存
+   */
+  private final int maxFormBytes;
+  /**
+   * 读出来的表单请求体，null表示还没判断过，NO_BODY表示不缓存
+   */
+  private byte[] form;
+  /**
+   * 参数是否由自己解析，而不是交给容器
+   */
+  private boolean selfParsed = false;
 
   /**
    * Constructs a request object wrapping the given request.
@@ -54,86 +57,265 @@ public class CharsetDetectRequestWrapper extends HttpServletRequestWrapper {
    * @throws IllegalArgumentException if the request is null
    */
   public CharsetDetectRequestWrapper(HttpServletRequest request) {
-    super(request);
+    this(request, 0);
   }
 
   /**
-   * 把一个byte的整数变成其对应的url编码格式，比如\n(10)会变成 %0A；
-   * 这里使用了大写字母
+   * Constructs a request object wrapping the given request.
    *
-   * @param byteInt 单字节的byte
-   * @return 代表一个byte的URLEncode字符串
+   * @param request      请求对象
+   * @param maxFormBytes 表单请求体的缓存上限，0表示只识别query串的编码
+   * @throws IllegalArgumentException if the request is null
    */
-  private static String byte2hex(int byteInt) {
-    StringBuilder sbd = new StringBuilder();
-    sbd.append('%');
-    char ch = Character.forDigit((byteInt >> 4) & 0xF, 16);
-    appendUppercaseChar(sbd, ch);
-    ch = Character.forDigit(byteInt & 0xF, 16);
-    appendUppercaseChar(sbd, ch);
-    return sbd.toString();
+  public CharsetDetectRequestWrapper(HttpServletRequest request, int maxFormBytes) {
+    super(request);
+    this.maxFormBytes = maxFormBytes;
   }
 
-  private static void appendUppercaseChar(StringBuilder sbd, char ch) {
-    if (ch >= 'a' && ch <= 'z') {
-      ch = (char) (ch - 32);
+  @Override
+  public String getParameter(String name) {
+    ensureEncoding();
+    if (selfParsed) {
+      String[] values = parsedValues(name);
+      return values == null ? null : values[0];
+    }
+    //非UTF8编码需要特殊处理
+    String val = super.getParameter(name);
+    if (val != null && needRedecode(val)) {
+      // 如果发现非ascii字符，则按识别出来的编码重新解析原始串
+      String[] raw = rawQuery().getValues(name);
+      if (raw != null && raw[0] != null) {
+        FilterMetrics.getInstance().increment(FilterMetrics.CHARSET_REDECODES);
+        val = raw[0];
+      }
+    }
+    return val;
+  }
+
+  @Override
+  public String[] getParameterValues(String name) {
+    ensureEncoding();
+    if (selfParsed) {
+      String[] values = parsedValues(name);
+      return values == null ? null : values.clone();
+    }
+    return redecode(name, super.getParameterValues(name));
+  }
+
+  @Override
+  public Map<String, String[]> getParameterMap() {
+    ensureEncoding();
+    if (selfParsed) {
+      if (parameterMap == null) {
+        Map<String, String[]> m = Maps.newLinkedHashMap();
+        for (String name : rawQuery.names()) {
+          String[] values = parsedValues(name);
+          if (values != null) {
+            m.put(name, values);
+          }
+        }
+        parameterMap = Collections.unmodifiableMap(m);
+      }
+      return parameterMap;
+    }
+    Map<String, String[]> map = super.getParameterMap();
+    if (encoding.startsWith("UTF")) {
+      return map;
+    }
+    if (parameterMap == null) {
+      Map<String, String[]> m = Maps.newLinkedHashMap();
+      for (Map.Entry<String, String[]> e : map.entrySet()) {
+        m.put(e.getKey(), redecode(e.getKey(), e.getValue()));
+      }
+      parameterMap = Collections.unmodifiableMap(m);
     }
-    sbd.append(ch);
+    return parameterMap;
+  }
+
+  @Override
+  public Enumeration<String> getParameterNames() {
+    ensureEncoding();
+    if (selfParsed) {
+      return Collections.enumeration(getParameterMap().keySet());
+    }
+    return super.getParameterNames();
+  }
+
+  @Override
+  public ServletInputStream getInputStream() throws IOException {
+    byte[] body = readForm();
+    if (body == NO_BODY) {
+      return super.getInputStream();
+    }
+    return new ByteArrayServletInputStream(body);
+  }
+
+  @Override
+  public BufferedReader getReader() throws IOException {
+    byte[] body = readForm();
+    if (body == NO_BODY) {
+      return super.getReader();
+    }
+    String enc = getCharacterEncoding();
+    Charset charset = UTF8;
+    if (!Strings.isNullOrEmpty(enc)) {
+      try {
+        charset = Charset.forName(enc);
+      } catch (Exception e) {
+        log.error("unknown charset {}", enc);
+      }
+    }
+    return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), charset));
+  }
+
+  /**
+   * 自己解析的参数，去掉无法解码的取值
+   */
+  private String[] parsedValues(String name) {
+    String[] values = rawQuery.getValues(name);
+    if (values == null) {
+      return null;
+    }
+    int n = 0;
+    for (String v : values) {
+      if (v != null) {
+        n++;
+      }
+    }
+    if (n == values.length) {
+      return values;
+    }
+    if (n == 0) {
+      return null;
+    }
+    String[] copy = new String[n];
+    n = 0;
+    for (String v : values) {
+      if (v != null) {
+        copy[n++] = v;
+      }
+    }
+    return copy;
   }
 
   /**
-   * 将一个URLEncode的hex表示的byte恢复
+   * 长度已知且不超过上限的表单POST，一次性读出请求体，只读一次
    *
-   * @param hi 单字节高4bit的16进制
-   * @param lo 单字节低4bit的16进制
-   * @return 单字节的byte
+   * @return 请求体，不需要缓存时返回NO_BODY
    */
-  private static int hex2byte(char hi, char lo) {
-    return (HEX2BYTE_CONVERT[hi] << 4) + HEX2BYTE_CONVERT[lo];
+  private byte[] readForm() {
+    if (form != null) {
+      return form;
+    }
+    form = NO_BODY;
+    int len = getContentLength();
+    String type = getContentType();
+    if (maxFormBytes <= 0 || len < 0 || len > maxFormBytes || type == null || !"POST".equalsIgnoreCase(getMethod()) || !type.regionMatches(true, 0, FORM_TYPE, 0, FORM_TYPE.length())) {
+      return form;
+    }
+    byte[] body = new byte[len];
+    int n = 0;
+    try {
+      InputStream in = super.getInputStream();
+      while (n < len) {
+        int k = in.read(body, n, len - n);
+        if (k < 0) {
+          break;
+        }
+        n += k;
+      }
+    } catch (IOException e) {
+      log.error("cannot read form body, read {} of {} bytes", n, len, e);
+    }
+    form = n == len ? body : Arrays.copyOf(body, n);
+    return form;
   }
 
-  @Override
-  public String getParameter(String name) {
+  private void ensureEncoding() {
     if (encoding == null) {
       synchronized (this) {
         encoding = detectAndSetEncoding();
       }
     }
-    //非UTF8编码需要特殊处理
-    String val = super.getParameter(name);
-    if (val != null && !encoding.startsWith("UTF")) {
-      // 如果发现非ascii字符，则做解析原始串处理
-      boolean found = false;
-      for (int i = 0; i < val.length(); i++) {
-        if (val.charAt(i) > 255) {
-          found = true;
-          break;
-        }
+  }
+
+  /**
+   * 非UTF8编码下容器解析出来的值含有非ascii字符，说明容器用错了编码
+   */
+  private boolean needRedecode(String val) {
+    if (encoding.startsWith("UTF")) {
+      return false;
+    }
+    for (int i = 0; i < val.length(); i++) {
+      if (val.charAt(i) > 255) {
+        return true;
       }
-      if (found) {
-        String raw = getRawQuery(name);
-        try {
-          val = URLDecoder.decode(raw, encoding);
-        } catch (UnsupportedEncodingException e) {
-          log.error("cannot decode '{}', enc={}", raw, encoding, e);
-        }
+    }
+    return false;
+  }
+
+  /**
+   * 查询串里的取值排在前面，按位置替换成重新解码的结果，请求体里的取值保持不变
+   */
+  private String[] redecode(String name, String[] values) {
+    if (values == null) {
+      return null;
+    }
+    boolean found = false;
+    for (String v : values) {
+      if (v != null && needRedecode(v)) {
+        found = true;
+        break;
+      }
+    }
+    if (!found) {
+      return values;
+    }
+    String[] raw = rawQuery().getValues(name);
+    if (raw == null) {
+      return values;
+    }
+    FilterMetrics.getInstance().increment(FilterMetrics.CHARSET_REDECODES);
+    String[] copy = values.clone();
+    for (int i = 0, n = Math.min(copy.length, raw.length); i < n; i++) {
+      if (raw[i] != null) {
+        copy[i] = raw[i];
       }
     }
+    return copy;
+  }
 
-    return val;
+  private RawQuery rawQuery() {
+    if (rawQuery == null) {
+      rawQuery = new RawQuery(super.getQueryString(), encoding);
+    }
+    return rawQuery;
   }
 
   private String detectAndSetEncoding() {
     if (encoding == null) {
       String query = super.getQueryString(), enc = null;
+      //纯ASCII的查询串不管按什么编码解析结果都一样，没有请求体时既不用识别编码，也不用提前触发参数解析
+      if (isAscii(query) && getContentType() == null) {
+        FilterMetrics.getInstance().increment(FilterMetrics.CHARSET_FAST_PATH);
+        encoding = CharsetDetector.UTF_8;
+        return encoding;
+      }
+      //表单的请求体和query串合在一起，按同样的规则识别
+      byte[] body = readForm();
+      String params = query;
+      if (body != NO_BODY) {
+        String raw = new String(body, StandardCharsets.ISO_8859_1);
+        params = Strings.isNullOrEmpty(query) ? raw : query + '&' + raw;
+      }
       //支持通过参数指定编码信息
-      if (query != null && query.length() > 5) {
-        enc = detectByRequestParameter(query);
+      if (params != null && params.length() > 5) {
+        enc = detectByRequestParameter(params);
       }
 
       //通过URL编码识别是什么编码，对于UTF-8和GBK都是合法的编码组合，默认为UTF-8编码
       if (Strings.isNullOrEmpty(enc)) {
-        enc = detectURLCharset(query);
+        enc = detectURLCharset(params);
       }
       if (Strings.isNullOrEmpty(enc)) {
         enc = "UTF-8";
@@ -141,28 +323,36 @@ public class CharsetDetectRequestWrapper extends HttpServletRequestWrapper {
 
       try {
         super.setCharacterEncoding(enc);
-        super.getParameter("_"); //必须先获取一下参数，否则设定的Encoding不生效
+        if (body == NO_BODY) {
+          super.getParameter("_"); //必须先获取一下参数，否则设定的Encoding不生效
+        }
       } catch (UnsupportedEncodingException e) {
         log.error(query, e);
       }
+      if (body != NO_BODY) {
+        //请求体已经读出来了，容器解析不到，参数全部自己解析
+        rawQuery = new RawQuery(params, enc);
+        selfParsed = true;
+      }
       encoding = enc;
     }
     return encoding;
   }
 
-  private String getRawQuery(String name) {
-    String q = super.getQueryString();
-    String prefix = name + "=";
-    int pos = q.indexOf(prefix);
-    if (pos == -1) {
-      return "";
+  /**
+   * 查询串里没有'%'也没有非ASCII字符
+   */
+  private static boolean isAscii(String query) {
+    if (query == null) {
+      return true;
     }
-    String raw = q.substring(pos + prefix.length());
-    pos = raw.indexOf('&');
-    if (pos > 0) {
-      raw = raw.substring(0, pos);
+    for (int i = 0, n = query.length(); i < n; i++) {
+      char c = query.charAt(i);
+      if (c == '%' || c > 0x7F) {
+        return false;
+      }
     }
-    return raw;
+    return true;
   }
 
   /**
@@ -197,113 +387,6 @@ public class CharsetDetectRequestWrapper extends HttpServletRequestWrapper {
    * @return 字符编码
    */
   private String detectURLCharset(String query) {
-    try {
-      isURLEncoded(query, UTF8);
-      return "UTF-8";
-    } catch (Exception e) {
-      try {
-        isURLEncoded(query, GBK);
-      } catch (CharacterCodingException e1) {
-        return "UTF-8";
-      }
-      return "GBK";
-    }
-  }
-
-  /**
-   * 检测字符串的编码方式，仅处理UTF8,GBK两种
-   *
-   * @param str 待检查的字符串
-   * @return 字符编码
-   */
-  private String detectStringCharset(String str) {
-    if (str == null) {
-      return "UTF-8";
-    }
-    try {
-      //超长的字符串，只获取其中非英文字符255个进行判定
-      if (str.length() > 512) {
-        StringBuilder sbd = new StringBuilder(255);
-        for (int i = 0, j = 0, len = str.length(); i < len && j < 255; i++) {
-          char c = str.charAt(i);
-          if (c > '\u00ff') {
-            sbd.append(c);
-            j++;
-          }
-        }
-        str = sbd.toString();
-      }
-      bytes2str(str2bytes(str, UTF8), UTF8);
-      return "UTF-8";
-    } catch (Exception e) {
-      try {
-        bytes2str(str2bytes(str, GBK), GBK);
-      } catch (CharacterCodingException e1) {
-        return "UTF-8";
-      }
-      return "GBK";
-    }
-  }
-
-  /**
-   * 遇见非法不可解析的字符就抛异常
-   *
-   * @param str     待检查的字符串
-   * @param charset 待检查的字符编码
-   * @return 如果是对应编码返回true，否则返回false
-   */
-  private boolean isURLEncoded(String str, Charset charset) throws CharacterCodingException {
-    if (str == null || str.length() == 0)
-      return true;
-    //找到第一个百分号
-    int pos = str.indexOf('%');
-    if (pos > -1) {
-      str = str.substring(pos);
-    }
-    int numChars = str.length();
-    int trySize = numChars > 512 ? numChars / 2 : numChars;
-    ByteArrayOutputStream bout = new ByteArrayOutputStream(trySize);
-    for (int i = 0; i < numChars; i++) {
-      char ch = str.charAt(i);
-      if (ch == '%') {
-        if (i + 2 >= numChars) {
-          //url可能因为长度限制被截断，这里就不抛异常，避免误判
-          return true;
-        } else {
-          char c1 = str.charAt(i + 1), c2 = str.charAt(i + 2);
-          if (c1 > 255) {
-            i++;
-          } else if (c2 > 255) {
-            i += 2;
-          } else {
-            bout.write(hex2byte(c1, c2));
-            i += 2;
-          }
-        }
-      } else if (ch > '\u00FF') {
-        //非ascii字符直接不decode了
-        bytes2str(bout.toByteArray(), charset);
-        bout.reset();
-      }
-    }
-    bytes2str(bout.toByteArray(), charset);
-    return true;
-  }
-
-  private String bytes2str(byte[] bytes, Charset charset) throws CharacterCodingException {
-    CharsetDecoder dec = charset.newDecoder();
-    dec.onMalformedInput(CodingErrorAction.REPORT);
-    dec.onUnmappableCharacter(CodingErrorAction.REPORT);
-    CharBuffer cb = dec.decode(ByteBuffer.wrap(bytes));
-    return cb.toString();
-  }
-
-  private byte[] str2bytes(String str, Charset charset) throws CharacterCodingException {
-    CharsetEncoder enc = charset.newEncoder();
-    enc.onMalformedInput(CodingErrorAction.REPORT);
-    enc.onUnmappableCharacter(CodingErrorAction.REPORT);
-    CharBuffer cb = CharBuffer.wrap(str.toCharArray());
-    ByteBuffer bo = enc.encode(cb);
-    return Arrays.copyOf(bo.array(), bo.limit());
+    return CharsetDetector.detect(query);
   }
 }
@@ -0,0 +1,190 @@
+package com.github.filter.io;
+
+import com.github.filter.metrics.FilterMetrics;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 识别URL查询串是UTF-8还是GBK编码。
+ * 一次扫描完成百分号解码和UTF-8校验，UTF-8用手写的状态机（按Unicode标准的合法字节序列表），不抛异常也不分配内存；
+ * 只有不是合法UTF-8时才再扫描一遍，把字节解到线程复用的缓冲区里交给GBK解码器校验。
+ * 判定规则和原来逐段解码的做法完全一致：从第一个'%'开始，只有%XX解出来的字节参与校验，
+ * 遇到大于0xFF的字符时把已经解出的字节作为一段单独校验，末尾'%'不完整时视为合法
+ */
+final class CharsetDetector {
+  static final String UTF_8 = "UTF-8";
+  static final String GBK = "GBK";
+  private static final int[] HEX = new int[256];
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      if (i >= 'A' && i <= 'F') {
+        HEX[i] = i - 'A' + 10;
+      } else if (i >= 'a' && i <= 'f') {
+        HEX[i] = i - 'a' + 10;
+      } else if (i >= '0' && i <= '9') {
+        HEX[i] = i - '0';
+      }
+    }
+  }
+
+  private CharsetDetector() {
+  }
+
+  /**
+   * 检测url查询串的编码格式，仅处理UTF8,GBK两种
+   *
+   * @param query 检测的URL编码的查询串
+   * @return UTF-8或者GBK
+   */
+  static String detect(String query) {
+    if (isUtf8(query)) {
+      return UTF_8;
+    }
+    FilterMetrics.getInstance().increment(FilterMetrics.CHARSET_FALLBACKS);
+    return isGbk(query) ? GBK : UTF_8;
+  }
+
+  static boolean isUtf8(String str) {
+    if (str == null) {
+      return true;
+    }
+    int start = str.indexOf('%');
+    if (start == -1) {
+      start = 0;
+    }
+    int n = str.length();
+    //还需要几个后续字节，以及下一个字节的合法范围
+    int need = 0, lo = 0x80, hi = 0xBF;
+    boolean bad = false;
+    for (int i = start; i < n; i++) {
+      char ch = str.charAt(i);
+      if (ch == '%') {
+        if (i + 2 >= n) {
+          //url可能因为长度限制被截断，这里就不算错，避免误判
+          return true;
+        }
+        char c1 = str.charAt(i + 1), c2 = str.charAt(i + 2);
+        if (c1 > 255) {
+          i++;
+          continue;
+        }
+        i += 2;
+        if (c2 > 255 || bad) {
+          continue;
+        }
+        int b = (HEX[c1] << 4) + HEX[c2];
+        if (need == 0) {
+          if (b < 0x80) {
+            continue;
+          } else if (b >= 0xC2 && b <= 0xDF) {
+            need = 1;
+          } else if (b >= 0xE0 && b <= 0xEF) {
+            need = 2;
+            lo = b == 0xE0 ? 0xA0 : 0x80;
+            hi = b == 0xED ? 0x9F : 0xBF;
+          } else if (b >= 0xF0 && b <= 0xF4) {
+            need = 3;
+            lo = b == 0xF0 ? 0x90 : 0x80;
+            hi = b == 0xF4 ? 0x8F : 0xBF;
+          } else {
+            bad = true;
+          }
+        } else if (b < lo || b > hi) {
+          bad = true;
+        } else {
+          need--;
+          lo = 0x80;
+          hi = 0xBF;
+        }
+      } else if (ch > '\u00FF') {
+        //非ascii字符直接不decode了，之前解出来的字节单独作为一段
+        if (bad || need != 0) {
+          return false;
+        }
+      }
+    }
+    return !bad && need == 0;
+  }
+
+  static boolean isGbk(String str) {
+    if (str == null) {
+      return true;
+    }
+    int start = str.indexOf('%');
+    if (start == -1) {
+      start = 0;
+    }
+    Scratch s = SCRATCH.get();
+    int n = str.length();
+    byte[] buf = s.bytes(n / 3 + 1);
+    int len = 0;
+    for (int i = start; i < n; i++) {
+      char ch = str.charAt(i);
+      if (ch == '%') {
+        if (i + 2 >= n) {
+          return true;
+        }
+        char c1 = str.charAt(i + 1), c2 = str.charAt(i + 2);
+        if (c1 > 255) {
+          i++;
+        } else if (c2 > 255) {
+          i += 2;
+        } else {
+          buf[len++] = (byte) ((HEX[c1] << 4) + HEX[c2]);
+          i += 2;
+        }
+      } else if (ch > '\u00FF') {
+        if (!s.isGbk(len)) {
+          return false;
+        }
+        len = 0;
+      }
+    }
+    return s.isGbk(len);
+  }
+
+  /**
+   * 每个线程复用的缓冲区和解码器
+   */
+  private static final class Scratch {
+    private final CharsetDecoder decoder = CharsetDetectRequestWrapper.GBK.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+    private byte[] bytes = new byte[256];
+    private ByteBuffer in = ByteBuffer.wrap(bytes);
+    private CharBuffer out = CharBuffer.allocate(256);
+
+    byte[] bytes(int size) {
+      if (bytes.length < size) {
+        bytes = new byte[Math.max(size, bytes.length << 1)];
+        in = ByteBuffer.wrap(bytes);
+        out = CharBuffer.allocate(bytes.length);
+      }
+      return bytes;
+    }
+
+    boolean isGbk(int len) {
+      if (len == 0) {
+        return true;
+      }
+      in.clear();
+      in.limit(len);
+      out.clear();
+      decoder.reset();
+      CoderResult r = decoder.decode(in, out, true);
+      if (r.isError()) {
+        return false;
+      }
+      return !decoder.flush(out).isError();
+    }
+  }
+}
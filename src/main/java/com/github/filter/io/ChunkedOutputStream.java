@@ -0,0 +1,144 @@
+package com.github.filter.io;
+
+import com.github.filter.metrics.FilterMetrics;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分块存储的输出缓存，块从BufferPool获取，扩容时不需要拷贝已有数据
+ */
+class ChunkedOutputStream extends ResponseBuffer {
+  private final BufferPool pool;
+  private byte[][] chunks = new byte[8][];
+  /**
+   * 已经分配的块数
+   */
+  private int allocated = 0;
+  /**
+   * 当前写入的块下标
+   */
+  private int index = -1;
+  private byte[] current;
+  private int pos;
+  private int count = 0;
+
+  ChunkedOutputStream(BufferPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public void write(int b) {
+    if (current == null || pos == current.length) {
+      nextChunk();
+    }
+    current[pos++] = (byte) b;
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0))
+      throw new IndexOutOfBoundsException();
+    count += len;
+    while (len > 0) {
+      if (current == null || pos == current.length) {
+        nextChunk();
+      }
+      int n = Math.min(len, current.length - pos);
+      System.arraycopy(b, off, current, pos, n);
+      pos += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void nextChunk() {
+    index++;
+    if (index == allocated) {
+      if (allocated == chunks.length) {
+        byte[][] bigger = new byte[allocated << 1][];
+        System.arraycopy(chunks, 0, bigger, 0, allocated);
+        chunks = bigger;
+      }
+      //前几块用小的级别，大页面后续都用最大的级别
+      chunks[allocated++] = pool.acquire(index);
+      FilterMetrics.getInstance().increment(FilterMetrics.BUFFER_GROWTHS);
+    }
+    current = chunks[index];
+    pos = 0;
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public void reset() {
+    count = 0;
+    index = -1;
+    current = null;
+    pos = 0;
+  }
+
+  @Override
+  public void release() {
+    for (int i = 0; i < allocated; i++) {
+      pool.release(chunks[i]);
+      chunks[i] = null;
+    }
+    allocated = 0;
+    reset();
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    for (int i = 0; i < index; i++) {
+      out.write(chunks[i], 0, chunks[i].length);
+    }
+    if (current != null) {
+      out.write(current, 0, pos);
+    }
+  }
+
+  @Override
+  public InputStream asInputStream() {
+    List<InputStream> streams = new ArrayList<>(index + 1);
+    for (int i = 0; i < index; i++) {
+      streams.add(new ByteArrayInputStream(chunks[i]));
+    }
+    if (current != null) {
+      streams.add(new ByteArrayInputStream(current, 0, pos));
+    }
+    return new SequenceInputStream(Collections.enumeration(streams));
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    byte[] bytes = new byte[count];
+    int off = 0;
+    for (int i = 0; i < index; i++) {
+      System.arraycopy(chunks[i], 0, bytes, off, chunks[i].length);
+      off += chunks[i].length;
+    }
+    if (current != null) {
+      System.arraycopy(current, 0, bytes, off, pos);
+    }
+    return bytes;
+  }
+
+  @Override
+  public String toString(Charset charset) {
+    if (index == 0) {
+      return new String(current, 0, pos, charset);
+    }
+    return new String(toByteArray(), charset);
+  }
+}
@@ -0,0 +1,16 @@
+package com.github.filter.io;
+
+import java.io.IOException;
+
+/**
+ * 响应在流式输出前提交header时的回调
+ */
+public interface CommitListener {
+  /**
+   * 在第一个字节写入容器输出流之前调用，用于补全header信息
+   *
+   * @param wrapper 即将提交的响应对象
+   * @throws IOException
+   */
+  void beforeCommit(BufferedResponseWrapper wrapper) throws IOException;
+}
@@ -0,0 +1,25 @@
+package com.github.filter.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 响应压缩算法的扩展点，除了内置的gzip和deflate，其他实现通过ServiceLoader加载
+ */
+public interface CompressionCodec {
+  /**
+   * 对应Content-Encoding/Accept-Encoding中的名字，小写
+   */
+  String getEncoding();
+
+  /**
+   * 创建压缩流，close时写完尾部数据
+   *
+   * @param out      压缩后数据的输出流
+   * @param level    压缩级别，-1表示算法默认级别
+   * @param strategy java.util.zip.Deflater的压缩策略，非deflate类的算法可以忽略
+   * @return 压缩流
+   * @throws IOException
+   */
+  OutputStream compress(OutputStream out, int level, int strategy) throws IOException;
+}
@@ -0,0 +1,154 @@
+package com.github.filter.io;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * 压缩算法注册表以及Accept-Encoding协商
+ */
+public final class CompressionCodecs {
+  public static final CompressionCodec GZIP = new CompressionCodec() {
+    @Override
+    public String getEncoding() {
+      return "gzip";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out, int level, int strategy) throws IOException {
+      return new PooledDeflaterOutputStream(out, DeflaterPool.getInstance(), true, level, strategy);
+    }
+  };
+  public static final CompressionCodec DEFLATE = new CompressionCodec() {
+    @Override
+    public String getEncoding() {
+      return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out, int level, int strategy) throws IOException {
+      return new PooledDeflaterOutputStream(out, DeflaterPool.getInstance(), false, level, strategy);
+    }
+  };
+  private static final Logger LOG = LoggerFactory.getLogger(CompressionCodecs.class);
+  private static final Map<String, CompressionCodec> CODECS = Maps.newLinkedHashMap();
+
+  static {
+    CODECS.put(GZIP.getEncoding(), GZIP);
+    CODECS.put(DEFLATE.getEncoding(), DEFLATE);
+    //逐个加载，某个实现缺少可选依赖时只跳过它自己
+    Iterator<CompressionCodec> it = ServiceLoader.load(CompressionCodec.class).iterator();
+    while (true) {
+      try {
+        if (!it.hasNext()) {
+          break;
+        }
+        CompressionCodec codec = it.next();
+        CODECS.put(codec.getEncoding().toLowerCase(), codec);
+      } catch (ServiceConfigurationError e) {
+        LOG.warn("skip CompressionCodec: {}", e.getMessage());
+      } catch (Throwable e) {
+        LOG.error("cannot load CompressionCodec", e);
+        break;
+      }
+    }
+  }
+
+  private CompressionCodecs() {
+  }
+
+  /**
+   * 按名字查找压缩算法
+   *
+   * @param encoding Content-Encoding名字
+   * @return 没有找到返回null
+   */
+  public static CompressionCodec get(String encoding) {
+    return encoding == null ? null : CODECS.get(encoding.trim().toLowerCase());
+  }
+
+  /**
+   * 根据Accept-Encoding的q值选择压缩算法，q值相同时按服务端的顺序优先
+   *
+   * @param acceptEncoding 请求头Accept-Encoding
+   * @param preferred      服务端启用的算法，按优先级排列
+   * @return 不需要压缩时返回null
+   */
+  public static CompressionCodec negotiate(String acceptEncoding, List<CompressionCodec> preferred) {
+    if (acceptEncoding == null || acceptEncoding.isEmpty() || preferred.isEmpty()) {
+      return null;
+    }
+    CompressionCodec best = null;
+    float bestQ = 0;
+    int bestRank = Integer.MAX_VALUE;
+    float wildcardQ = -1;
+    //明确列出的算法，包括q=0拒绝的，'*'不能再匹配它们
+    boolean[] listed = new boolean[preferred.size()];
+    int len = acceptEncoding.length();
+    int start = 0;
+    while (start < len) {
+      int end = acceptEncoding.indexOf(',', start);
+      if (end == -1) {
+        end = len;
+      }
+      int semi = acceptEncoding.indexOf(';', start);
+      int nameEnd = semi != -1 && semi < end ? semi : end;
+      String name = acceptEncoding.substring(start, nameEnd).trim();
+      float q = nameEnd < end ? parseQuality(acceptEncoding.substring(nameEnd + 1, end)) : 1;
+      if (name.equals("*")) {
+        wildcardQ = q;
+      } else {
+        for (int i = 0; i < preferred.size(); i++) {
+          CompressionCodec codec = preferred.get(i);
+          if (codec.getEncoding().equalsIgnoreCase(name)) {
+            listed[i] = true;
+            if (q > bestQ || (q == bestQ && q > 0 && i < bestRank)) {
+              best = codec;
+              bestQ = q;
+              bestRank = i;
+            }
+            break;
+          }
+        }
+      }
+      start = end + 1;
+    }
+    if (wildcardQ > bestQ) {
+      //"*"匹配没有明确列出的算法，q值更高时取服务端最优先的那个
+      for (int i = 0; i < preferred.size(); i++) {
+        if (!listed[i]) {
+          return preferred.get(i);
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * 从";q=0.5;xxx=1"这样的参数里取q值，没有q参数时是1，格式错误时按0处理
+   */
+  private static float parseQuality(String params) {
+    for (String param : Splitter.on(';').trimResults().omitEmptyStrings().split(params)) {
+      int eq = param.indexOf('=');
+      if (eq == -1 || !param.substring(0, eq).trim().equalsIgnoreCase("q")) {
+        continue;
+      }
+      try {
+        float v = Float.parseFloat(param.substring(eq + 1).trim());
+        return v < 0 ? 0 : v > 1 ? 1 : v;
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,84 @@
+package com.github.filter.io;
+
+import com.github.filter.metrics.FilterMetrics;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按contentType统计压缩前后的字节数，用于观察压缩率
+ */
+public final class CompressionStats {
+  private static final CompressionStats INSTANCE = new CompressionStats();
+  /**
+   * contentType由业务代码决定，数量有限，这里再加个上限避免异常数据撑爆
+   */
+  private static final int MAX_TYPES = 64;
+  private static final String OTHER = "other";
+  private final ConcurrentMap<String, AtomicLongArray> stats = Maps.newConcurrentMap();
+
+  private CompressionStats() {
+  }
+
+  public static CompressionStats getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * 记录一次压缩
+   *
+   * @param contentType 响应的contentType
+   * @param rawBytes    压缩前字节数
+   * @param zipBytes    压缩后字节数
+   */
+  public void record(String contentType, long rawBytes, long zipBytes) {
+    FilterMetrics metrics = FilterMetrics.getInstance();
+    metrics.add(FilterMetrics.COMPRESS_IN, rawBytes);
+    metrics.add(FilterMetrics.COMPRESS_OUT, zipBytes);
+    String mime = ResponseOptions.mimeType(contentType);
+    if (mime == null) {
+      mime = OTHER;
+    }
+    AtomicLongArray cnt = stats.get(mime);
+    if (cnt == null) {
+      if (stats.size() >= MAX_TYPES) {
+        mime = OTHER;
+      }
+      cnt = new AtomicLongArray(3);
+      AtomicLongArray old = stats.putIfAbsent(mime, cnt);
+      if (old != null) {
+        cnt = old;
+      }
+    }
+    cnt.incrementAndGet(0);
+    cnt.addAndGet(1, rawBytes);
+    cnt.addAndGet(2, zipBytes);
+  }
+
+  /**
+   * 各contentType的压缩率，压缩后字节数/压缩前字节数
+   */
+  public Map<String, Double> getRatios() {
+    Map<String, Double> ratios = Maps.newTreeMap();
+    for (Map.Entry<String, AtomicLongArray> kv : stats.entrySet()) {
+      long raw = kv.getValue().get(1);
+      if (raw > 0) {
+        ratios.put(kv.getKey(), (double) kv.getValue().get(2) / raw);
+      }
+    }
+    return ratios;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("CompressionStats{");
+    for (Map.Entry<String, AtomicLongArray> kv : stats.entrySet()) {
+      AtomicLongArray v = kv.getValue();
+      sb.append(kv.getKey()).append("=[count=").append(v.get(0)).append(", raw=").append(v.get(1)).append(", zip=").append(v.get(2)).append("] ");
+    }
+    sb.append('}');
+    return sb.toString();
+  }
+}
@@ -0,0 +1,42 @@
+package com.github.filter.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 统计写入字节数的输出流，close时不关闭底层的流
+ */
+class CountingOutputStream extends OutputStream {
+  private final OutputStream out;
+  private int count = 0;
+
+  CountingOutputStream(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    count += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.flush();
+  }
+
+  int getCount() {
+    return count;
+  }
+}
@@ -0,0 +1,100 @@
+package com.github.filter.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Deflater池，避免每个请求都分配native的zlib内存，也避免finalizer堆积
+ */
+public final class DeflaterPool {
+  private static final DeflaterPool INSTANCE = new DeflaterPool(Runtime.getRuntime().availableProcessors() * 4);
+  /**
+   * 不带zlib头，用于gzip
+   */
+  private final BlockingQueue<Deflater> raw;
+  /**
+   * 带zlib头，用于deflate
+   */
+  private final BlockingQueue<Deflater> wrapped;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private DeflaterPool(int capacity) {
+    raw = new ArrayBlockingQueue<>(capacity);
+    wrapped = new ArrayBlockingQueue<>(capacity);
+  }
+
+  public static DeflaterPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * 获取一个Deflater
+   *
+   * @param nowrap   是否不带zlib头和校验，gzip格式需要为true
+   * @param level    压缩级别
+   * @param strategy 压缩策略
+   * @return 可以直接使用的Deflater，用完必须release
+   */
+  public Deflater acquire(boolean nowrap, int level, int strategy) {
+    Deflater def = (nowrap ? raw : wrapped).poll();
+    if (def == null) {
+      misses.incrementAndGet();
+      def = new Deflater(level, nowrap);
+    } else {
+      hits.incrementAndGet();
+      def.setLevel(level);
+    }
+    def.setStrategy(strategy);
+    return def;
+  }
+
+  /**
+   * 归还Deflater，池满时直接释放native内存
+   *
+   * @param def    之前获取的Deflater
+   * @param nowrap 获取时的nowrap参数
+   */
+  public void release(Deflater def, boolean nowrap) {
+    if (def == null) {
+      return;
+    }
+    def.reset();
+    if (!(nowrap ? raw : wrapped).offer(def)) {
+      def.end();
+    }
+  }
+
+  /**
+   * 从池里拿到Deflater的次数
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * 新创建Deflater的次数
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * 池里空闲的Deflater个数
+   */
+  public int getIdle() {
+    return raw.size() + wrapped.size();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("DeflaterPool{");
+    sb.append("hits=").append(hits.get());
+    sb.append(", misses=").append(misses.get());
+    sb.append(", idle=").append(getIdle());
+    sb.append('}');
+    return sb.toString();
+  }
+}
@@ -0,0 +1,144 @@
+package com.github.filter.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 堆外ByteBuffer池，按线程分段，所有块大小相同。堆外内存分配代价高，块用完必须归还
+ */
+public final class DirectBufferPool {
+  /**
+   * 每个块的大小
+   */
+  static final int CHUNK_SIZE = 32 * 1024;
+  /**
+   * 每一段默认最多缓存的块数
+   */
+  static final int DEFAULT_MAX_PER_STRIPE = 32;
+  private static final DirectBufferPool INSTANCE = new DirectBufferPool();
+  private final Stripe[] stripes;
+  private final int mask;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong bytesHeld = new AtomicLong();
+  private volatile int maxPerStripe = DEFAULT_MAX_PER_STRIPE;
+
+  private DirectBufferPool() {
+    int n = 1;
+    int cpu = Runtime.getRuntime().availableProcessors();
+    while (n < cpu && n < 16) {
+      n <<= 1;
+    }
+    stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      stripes[i] = new Stripe();
+    }
+    mask = n - 1;
+  }
+
+  public static DirectBufferPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * 设定每一段最多缓存的块数，池的总容量是段数*块数*{@link #CHUNK_SIZE}
+   *
+   * @param max 块数，小于等于0时忽略
+   */
+  public void setMaxPerStripe(int max) {
+    if (max > 0) {
+      maxPerStripe = max;
+    }
+  }
+
+  /**
+   * 获取一个清空的块，池里没有就新分配
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buf = stripe().pop();
+    if (buf != null) {
+      hits.incrementAndGet();
+      bytesHeld.addAndGet(-CHUNK_SIZE);
+      buf.clear();
+      return buf;
+    }
+    misses.incrementAndGet();
+    return ByteBuffer.allocateDirect(CHUNK_SIZE);
+  }
+
+  /**
+   * 归还一个块，池满时丢弃，由GC回收堆外内存
+   *
+   * @param buf 之前通过acquire获取的块
+   */
+  public void release(ByteBuffer buf) {
+    if (buf == null || !buf.isDirect() || buf.capacity() != CHUNK_SIZE) {
+      return;
+    }
+    if (stripe().push(buf, maxPerStripe)) {
+      bytesHeld.addAndGet(CHUNK_SIZE);
+    }
+  }
+
+  private Stripe stripe() {
+    return stripes[(int) Thread.currentThread().getId() & mask];
+  }
+
+  /**
+   * 从池里拿到块的次数
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * 池里没有块需要新分配的次数
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * 池里当前缓存的字节数
+   */
+  public long getBytesHeld() {
+    return bytesHeld.get();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("DirectBufferPool{");
+    sb.append("stripes=").append(stripes.length);
+    sb.append(", hits=").append(hits.get());
+    sb.append(", misses=").append(misses.get());
+    sb.append(", bytesHeld=").append(bytesHeld.get());
+    sb.append('}');
+    return sb.toString();
+  }
+
+  private static final class Stripe {
+    private ByteBuffer[] stack = new ByteBuffer[DEFAULT_MAX_PER_STRIPE];
+    private int top = 0;
+
+    synchronized ByteBuffer pop() {
+      if (top == 0) {
+        return null;
+      }
+      ByteBuffer buf = stack[--top];
+      stack[top] = null;
+      return buf;
+    }
+
+    synchronized boolean push(ByteBuffer buf, int max) {
+      if (top >= max) {
+        return false;
+      }
+      if (top == stack.length) {
+        stack = Arrays.copyOf(stack, Math.min(max, stack.length << 1));
+      }
+      stack[top++] = buf;
+      return true;
+    }
+  }
+}
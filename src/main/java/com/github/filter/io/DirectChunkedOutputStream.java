@@ -0,0 +1,162 @@
+package com.github.filter.io;
+
+import com.github.filter.metrics.FilterMetrics;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 堆外内存分块存储的输出缓存，大页面不再占用堆空间。
+ * 单个响应占用的堆外块数有上限，超出部分改用BufferPool的堆内块，避免超大页面把堆外池撑满之后不断新分配
+ */
+class DirectChunkedOutputStream extends ResponseBuffer {
+  /**
+   * 输出到普通OutputStream时用的中转数组，每个块只需要拷贝一次
+   */
+  private static final ThreadLocal<byte[]> TRANSFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[DirectBufferPool.CHUNK_SIZE];
+    }
+  };
+  private final DirectBufferPool pool;
+  /**
+   * 最多使用的堆外块数
+   */
+  private final int maxDirectChunks;
+  private int directChunks = 0;
+  private ByteBuffer[] chunks = new ByteBuffer[8];
+  /**
+   * 已经分配的块数
+   */
+  private int allocated = 0;
+  /**
+   * 当前写入的块下标
+   */
+  private int index = -1;
+  private ByteBuffer current;
+  private int count = 0;
+
+  DirectChunkedOutputStream(DirectBufferPool pool, int maxDirectBytes) {
+    this.pool = pool;
+    this.maxDirectChunks = Math.max(1, maxDirectBytes / DirectBufferPool.CHUNK_SIZE);
+  }
+
+  @Override
+  public void write(int b) {
+    if (current == null || !current.hasRemaining()) {
+      nextChunk();
+    }
+    current.put((byte) b);
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0))
+      throw new IndexOutOfBoundsException();
+    count += len;
+    while (len > 0) {
+      if (current == null || !current.hasRemaining()) {
+        nextChunk();
+      }
+      int n = Math.min(len, current.remaining());
+      current.put(b, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void nextChunk() {
+    index++;
+    if (index == allocated) {
+      if (allocated == chunks.length) {
+        ByteBuffer[] bigger = new ByteBuffer[allocated << 1];
+        System.arraycopy(chunks, 0, bigger, 0, allocated);
+        chunks = bigger;
+      }
+      if (directChunks < maxDirectChunks) {
+        chunks[allocated++] = pool.acquire();
+        directChunks++;
+      } else {
+        chunks[allocated++] = ByteBuffer.wrap(BufferPool.getInstance().acquire(BufferPool.SIZE_CLASSES.length - 1));
+      }
+      FilterMetrics.getInstance().increment(FilterMetrics.BUFFER_GROWTHS);
+    }
+    current = chunks[index];
+    current.clear();
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public void reset() {
+    count = 0;
+    index = -1;
+    current = null;
+  }
+
+  @Override
+  public void release() {
+    for (int i = 0; i < allocated; i++) {
+      if (chunks[i].isDirect()) {
+        pool.release(chunks[i]);
+      } else {
+        BufferPool.getInstance().release(chunks[i].array());
+      }
+      chunks[i] = null;
+    }
+    allocated = 0;
+    directChunks = 0;
+    reset();
+  }
+
+  /**
+   * 返回只读视图，position到limit是已写入的内容
+   */
+  private ByteBuffer[] readViews() {
+    ByteBuffer[] views = new ByteBuffer[index + 1];
+    for (int i = 0; i <= index; i++) {
+      ByteBuffer view = chunks[i].duplicate();
+      view.flip();
+      views[i] = view;
+    }
+    return views;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    if (index < 0) {
+      return;
+    }
+    //ServletOutputStream不是Channel，统一经过中转数组输出，每个块只拷贝一次
+    byte[] tmp = TRANSFER.get();
+    for (ByteBuffer view : readViews()) {
+      if (view.hasArray()) {
+        out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+        continue;
+      }
+      int n = view.remaining();
+      view.get(tmp, 0, n);
+      out.write(tmp, 0, n);
+    }
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    byte[] bytes = new byte[count];
+    if (index < 0) {
+      return bytes;
+    }
+    int off = 0;
+    for (ByteBuffer view : readViews()) {
+      int n = view.remaining();
+      view.get(bytes, off, n);
+      off += n;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.filter.io;
+
+import java.io.OutputStream;
+
+/**
+ * 计算写入内容的64位FNV-1a哈希，不保存数据，用于生成ETag
+ */
+class HashOutputStream extends OutputStream {
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private long hash = FNV_OFFSET;
+  private long count = 0;
+
+  @Override
+  public void write(int b) {
+    hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    long h = hash;
+    for (int i = off, end = off + len; i < end; i++) {
+      h = (h ^ (b[i] & 0xff)) * FNV_PRIME;
+    }
+    hash = h;
+    count += len;
+  }
+
+  /**
+   * 16位哈希值加上内容长度的16进制表示
+   */
+  String toHex() {
+    char[] buf = new char[16];
+    long h = hash;
+    for (int i = 15; i >= 0; i--) {
+      buf[i] = HEX[(int) (h & 0xf)];
+      h >>>= 4;
+    }
+    return new String(buf) + Long.toHexString(count);
+  }
+}
@@ -0,0 +1,152 @@
+package com.github.filter.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 使用池化Deflater的压缩流，gzip的头和尾由这里直接写出。close或release时归还Deflater，不关闭底层的流
+ */
+class PooledDeflaterOutputStream extends OutputStream {
+  /**
+   * 和GZIPOutputStream一致的头：magic、deflate、无flag、无时间、无额外标识
+   */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+  private final OutputStream out;
+  private final DeflaterPool pool;
+  private final boolean gzip;
+  private final CRC32 crc;
+  private final byte[] one = new byte[1];
+  private Deflater def;
+  private byte[] buf;
+  private boolean closed = false;
+
+  /**
+   * @param out      压缩后数据的输出流
+   * @param pool     Deflater池
+   * @param gzip     true输出gzip格式，false输出zlib格式(Content-Encoding: deflate)
+   * @param level    压缩级别
+   * @param strategy 压缩策略
+   * @throws IOException
+   */
+  PooledDeflaterOutputStream(OutputStream out, DeflaterPool pool, boolean gzip, int level, int strategy) throws IOException {
+    this.out = out;
+    this.pool = pool;
+    this.gzip = gzip;
+    this.def = pool.acquire(gzip, level, strategy);
+    this.buf = BufferPool.getInstance().acquire(1);
+    if (gzip) {
+      crc = new CRC32();
+      out.write(GZIP_HEADER);
+    } else {
+      crc = null;
+    }
+  }
+
+  /**
+   * 如果流没有正常close，归还资源。对已经归还的流调用是安全的
+   *
+   * @param o 压缩流，其他类型直接忽略
+   */
+  static void release(OutputStream o) {
+    if (o instanceof PooledDeflaterOutputStream) {
+      ((PooledDeflaterOutputStream) o).release();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    one[0] = (byte) b;
+    write(one, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("write beyond end of stream");
+    }
+    if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return;
+    }
+    def.setInput(b, off, len);
+    while (!def.needsInput()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+    if (gzip) {
+      crc.update(b, off, len);
+    }
+  }
+
+  private int deflate(int flush) throws IOException {
+    int n = def.deflate(buf, 0, buf.length, flush);
+    if (n > 0) {
+      out.write(buf, 0, n);
+    }
+    return n;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (!closed) {
+      int n;
+      while ((n = deflate(Deflater.SYNC_FLUSH)) > 0) {
+        if (n < buf.length) {
+          break;
+        }
+      }
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      def.finish();
+      while (!def.finished()) {
+        deflate(Deflater.NO_FLUSH);
+      }
+      if (gzip) {
+        writeTrailer(crc.getValue(), def.getBytesRead());
+      }
+      out.flush();
+    } finally {
+      release();
+    }
+  }
+
+  private void writeTrailer(long checksum, long size) throws IOException {
+    byte[] trailer = buf;
+    writeInt(trailer, 0, checksum);
+    writeInt(trailer, 4, size);
+    out.write(trailer, 0, 8);
+  }
+
+  private static void writeInt(byte[] b, int off, long v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >> 8);
+    b[off + 2] = (byte) (v >> 16);
+    b[off + 3] = (byte) (v >> 24);
+  }
+
+  /**
+   * 归还Deflater和缓冲区，之后不能再写入
+   */
+  void release() {
+    closed = true;
+    if (def != null) {
+      pool.release(def, gzip);
+      def = null;
+    }
+    if (buf != null) {
+      BufferPool.getInstance().release(buf);
+      buf = null;
+    }
+  }
+}
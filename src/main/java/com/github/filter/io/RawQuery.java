@@ -0,0 +1,109 @@
+package com.github.filter.io;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 原始查询串的索引，只扫描一遍，记下每个参数名对应的所有取值在查询串里的起止位置，
+ * 取值时才按指定编码解码，解码结果按参数名缓存。同一个请求只在一个线程里使用，不需要同步。
+ * 表单请求把查询串和请求体用'&'拼起来建一个索引，查询串的取值排在前面
+ */
+final class RawQuery {
+  private static final Logger LOG = LoggerFactory.getLogger(RawQuery.class);
+  private static final int[] EMPTY = new int[0];
+  private final String query;
+  private final String encoding;
+  /**
+   * 参数名到取值位置的映射，每两个int是一个取值的[start, end)
+   */
+  private final Map<String, int[]> ranges = Maps.newLinkedHashMap();
+  private final Map<String, String[]> decoded = Maps.newHashMap();
+
+  RawQuery(String query, String encoding) {
+    this.query = query == null ? "" : query;
+    this.encoding = encoding;
+    parse();
+  }
+
+  private void parse() {
+    int n = query.length();
+    int start = 0;
+    while (start < n) {
+      int end = query.indexOf('&', start);
+      if (end == -1) {
+        end = n;
+      }
+      if (end > start) {
+        int eq = query.indexOf('=', start);
+        if (eq == -1 || eq > end) {
+          eq = end;
+        }
+        String name = decode(start, eq);
+        if (name != null && !name.isEmpty()) {
+          add(name, Math.min(eq + 1, end), end);
+        }
+      }
+      start = end + 1;
+    }
+  }
+
+  private void add(String name, int start, int end) {
+    int[] r = ranges.get(name);
+    if (r == null) {
+      r = EMPTY;
+    }
+    r = Arrays.copyOf(r, r.length + 2);
+    r[r.length - 2] = start;
+    r[r.length - 1] = end;
+    ranges.put(name, r);
+  }
+
+  /**
+   * 按出现顺序返回所有参数名
+   */
+  Set<String> names() {
+    return ranges.keySet();
+  }
+
+  /**
+   * 参数在查询串里的所有取值，按出现顺序解码
+   *
+   * @param name 参数名
+   * @return 查询串里没有这个参数时返回null，某个取值无法解码时对应位置为null
+   */
+  String[] getValues(String name) {
+    String[] values = decoded.get(name);
+    if (values == null) {
+      int[] r = ranges.get(name);
+      if (r == null) {
+        return null;
+      }
+      values = new String[r.length / 2];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = decode(r[i * 2], r[i * 2 + 1]);
+      }
+      decoded.put(name, values);
+    }
+    return values;
+  }
+
+  private String decode(int start, int end) {
+    String raw = query.substring(start, end);
+    if (raw.indexOf('%') == -1 && raw.indexOf('+') == -1) {
+      return raw;
+    }
+    try {
+      return URLDecoder.decode(raw, encoding);
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      LOG.error("cannot decode '{}', enc={}", raw, encoding, e);
+      return null;
+    }
+  }
+}
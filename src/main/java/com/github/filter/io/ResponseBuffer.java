@@ -0,0 +1,75 @@
+package com.github.filter.io;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * 响应内容的缓存，有堆内和堆外两种实现
+ */
+abstract class ResponseBuffer extends ServletOutputStream {
+
+  /**
+   * 创建一个缓存
+   *
+   * @param options 是否使用堆外内存，以及单个响应最多占用的堆外内存
+   * @return 缓存对象
+   */
+  static ResponseBuffer create(ResponseOptions options) {
+    if (options.isDirectBuffer()) {
+      return new DirectChunkedOutputStream(DirectBufferPool.getInstance(), options.getDirectMaxBytes());
+    }
+    return new ChunkedOutputStream(BufferPool.getInstance());
+  }
+
+  /**
+   * 已写入的字节数
+   */
+  public abstract int size();
+
+  /**
+   * 清空内容，已分配的块留着复用
+   */
+  public abstract void reset();
+
+  /**
+   * 把所有块归还给对应的池，之后还可以继续写入
+   */
+  public abstract void release();
+
+  /**
+   * 把缓存的内容写到输出流
+   *
+   * @param out 输出流
+   * @throws IOException
+   */
+  public abstract void writeTo(OutputStream out) throws IOException;
+
+  public abstract byte[] toByteArray();
+
+  public InputStream asInputStream() {
+    return new ByteArrayInputStream(toByteArray());
+  }
+
+  public String toString(Charset charset) {
+    return new String(toByteArray(), charset);
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+    throw new UnsupportedOperationException(getClass().getName() + " not support setWriteListener: " + writeListener);
+  }
+}
@@ -0,0 +1,243 @@
+package com.github.filter.io;
+
+import com.github.filter.helpers.UrlPatterns;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.FilterConfig;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * 响应缓存和压缩相关的配置，从Filter的init-param中读取
+ */
+public class ResponseOptions {
+  private static final Logger LOG = LoggerFactory.getLogger(ResponseOptions.class);
+  private int streamThreshold = 0;
+  private boolean directBuffer = false;
+  private int directMaxBytes = 1024 * 1024;
+  private List<CompressionCodec> codecs = ImmutableList.of(CompressionCodecs.GZIP);
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  private Map<String, Integer> strategies = Maps.newHashMap();
+  private UrlPatterns<Integer> routeLevels = new UrlPatterns<>();
+  private int compressMinSize = 1024;
+  private List<String> compressTypes = ImmutableList.of();
+  private List<String> excludeTypes = ImmutableList.of("image/*", "video/*", "audio/*", "application/zip", "application/gzip", "application/x-gzip", "application/x-rar-compressed", "application/x-7z-compressed", "application/octet-stream", "application/pdf");
+
+  /**
+   * 读取配置，支持的参数：
+   * <ul>
+   * <li>streamThreshold: 缓存阈值，超过后直接输出，默认0表示全部缓存</li>
+   * <li>buffer: heap或direct，默认heap</li>
+   * <li>directPoolChunks: direct模式下堆外池每一段缓存的32K块数，默认32</li>
+   * <li>directMaxBytes: direct模式下单个响应最多占用的堆外内存，超出部分用堆内块，默认1M</li>
+   * <li>compressEncodings: 启用的压缩算法，按优先级排列，默认gzip</li>
+   * <li>compressLevel: 压缩级别1-9，默认-1</li>
+   * <li>compressStrategy: 按contentType设定deflate策略，比如application/json:filtered,text/plain:huffman</li>
+   * <li>compressRouteLevel: 按URL设定压缩级别，比如/export/*:1,*.json:4</li>
+   * <li>compressMinSize: 小于这个字节数的响应不压缩，默认1024</li>
+   * <li>compressTypes: 只压缩这些contentType，支持text/*的写法，默认不限制</li>
+   * <li>compressExcludeTypes: 不压缩的contentType，默认是图片、音视频以及压缩包等</li>
+   * </ul>
+   *
+   * @param conf filter配置
+   * @return 配置对象
+   */
+  public static ResponseOptions from(FilterConfig conf) {
+    ResponseOptions o = new ResponseOptions();
+    o.streamThreshold = parseInt(conf.getInitParameter("streamThreshold"), 0);
+    o.directBuffer = "direct".equalsIgnoreCase(conf.getInitParameter("buffer"));
+    if (o.directBuffer) {
+      DirectBufferPool.getInstance().setMaxPerStripe(parseInt(conf.getInitParameter("directPoolChunks"), DirectBufferPool.DEFAULT_MAX_PER_STRIPE));
+      o.directMaxBytes = parseInt(conf.getInitParameter("directMaxBytes"), o.directMaxBytes);
+    }
+    String encodings = conf.getInitParameter("compressEncodings");
+    if (!Strings.isNullOrEmpty(encodings)) {
+      ImmutableList.Builder<CompressionCodec> builder = ImmutableList.builder();
+      for (String name : Splitter.on(',').trimResults().omitEmptyStrings().split(encodings)) {
+        CompressionCodec codec = CompressionCodecs.get(name);
+        if (codec != null) {
+          builder.add(codec);
+        } else {
+          LOG.error("unknown compress encoding: {}", name);
+        }
+      }
+      o.codecs = builder.build();
+    }
+    o.level = checkLevel(parseInt(conf.getInitParameter("compressLevel"), Deflater.DEFAULT_COMPRESSION));
+    String strategy = conf.getInitParameter("compressStrategy");
+    if (!Strings.isNullOrEmpty(strategy)) {
+      for (String item : Splitter.on(',').trimResults().omitEmptyStrings().split(strategy)) {
+        int pos = item.lastIndexOf(':');
+        if (pos > 0) {
+          o.strategies.put(item.substring(0, pos).trim().toLowerCase(), parseStrategy(item.substring(pos + 1).trim()));
+        }
+      }
+    }
+    String routeLevel = conf.getInitParameter("compressRouteLevel");
+    if (!Strings.isNullOrEmpty(routeLevel)) {
+      for (String item : Splitter.on(',').trimResults().omitEmptyStrings().split(routeLevel)) {
+        int pos = item.lastIndexOf(':');
+        if (pos > 0) {
+          o.routeLevels.add(item.substring(0, pos).trim(), checkLevel(parseInt(item.substring(pos + 1), o.level)));
+        } else {
+          LOG.error("illegal compressRouteLevel: {}", item);
+        }
+      }
+    }
+    o.compressMinSize = parseInt(conf.getInitParameter("compressMinSize"), o.compressMinSize);
+    o.compressTypes = parseTypes(conf.getInitParameter("compressTypes"), o.compressTypes);
+    o.excludeTypes = parseTypes(conf.getInitParameter("compressExcludeTypes"), o.excludeTypes);
+    return o;
+  }
+
+  static int parseInt(String value, int defaultValue) {
+    if (Strings.isNullOrEmpty(value)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      LOG.error("illegal number: {}", value);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Deflater只接受-1到9，配错了会让每个需要压缩的响应都抛异常，这里退回默认级别
+   */
+  static int checkLevel(int level) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      LOG.warn("illegal compress level: {}, use default", level);
+      return Deflater.DEFAULT_COMPRESSION;
+    }
+    return level;
+  }
+
+  private static List<String> parseTypes(String value, List<String> defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (String type : Splitter.on(',').trimResults().omitEmptyStrings().split(value)) {
+      builder.add(type.toLowerCase());
+    }
+    return builder.build();
+  }
+
+  private static boolean matchType(List<String> types, String mime) {
+    for (String type : types) {
+      if (type.endsWith("/*") ? mime.startsWith(type.substring(0, type.length() - 1)) : mime.equals(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int parseStrategy(String name) {
+    if ("filtered".equalsIgnoreCase(name)) {
+      return Deflater.FILTERED;
+    } else if ("huffman".equalsIgnoreCase(name)) {
+      return Deflater.HUFFMAN_ONLY;
+    }
+    return Deflater.DEFAULT_STRATEGY;
+  }
+
+  /**
+   * 去掉contentType中的charset等参数
+   */
+  static String mimeType(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    int pos = contentType.indexOf(';');
+    return (pos == -1 ? contentType : contentType.substring(0, pos)).trim().toLowerCase();
+  }
+
+  public int getStreamThreshold() {
+    return streamThreshold;
+  }
+
+  public boolean isDirectBuffer() {
+    return directBuffer;
+  }
+
+  /**
+   * 单个响应最多占用的堆外内存
+   */
+  public int getDirectMaxBytes() {
+    return directMaxBytes;
+  }
+
+  /**
+   * 启用的压缩算法，按优先级排列
+   */
+  public List<CompressionCodec> getCodecs() {
+    return codecs;
+  }
+
+  /**
+   * 根据请求头协商压缩算法
+   *
+   * @param acceptEncoding 请求头Accept-Encoding
+   * @return 不压缩时返回null
+   */
+  public CompressionCodec negotiate(String acceptEncoding) {
+    return CompressionCodecs.negotiate(acceptEncoding, codecs);
+  }
+
+  /**
+   * 默认的压缩级别
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * 获取uri对应的压缩级别
+   */
+  public int levelFor(String uri) {
+    if (routeLevels.isEmpty()) {
+      return level;
+    }
+    Integer v = routeLevels.match(uri);
+    return v == null ? level : v;
+  }
+
+  /**
+   * 根据响应的最终大小和contentType判断是否值得压缩
+   *
+   * @param contentType 响应的contentType
+   * @param size        未压缩的字节数
+   * @return 是否压缩
+   */
+  public boolean shouldCompress(String contentType, int size) {
+    if (size < compressMinSize) {
+      return false;
+    }
+    String mime = mimeType(contentType);
+    if (mime == null) {
+      return true;
+    }
+    if (!compressTypes.isEmpty() && !matchType(compressTypes, mime)) {
+      return false;
+    }
+    return !matchType(excludeTypes, mime);
+  }
+
+  /**
+   * 获取contentType对应的deflate策略
+   */
+  public int strategyFor(String contentType) {
+    if (strategies.isEmpty() || contentType == null) {
+      return Deflater.DEFAULT_STRATEGY;
+    }
+    Integer v = strategies.get(mimeType(contentType));
+    return v == null ? Deflater.DEFAULT_STRATEGY : v;
+  }
+}
@@ -0,0 +1,96 @@
+package com.github.filter.io;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 先缓存响应内容，超过阈值后提交header，之后的内容直接写到容器的输出流
+ */
+class ThresholdOutputStream extends ServletOutputStream {
+  private final ResponseBuffer buffer;
+  private final BufferedResponseWrapper owner;
+  private final int threshold;
+  private OutputStream target;
+  private int count = 0;
+
+  /**
+   * @param buffer    缓存
+   * @param owner     所属的响应对象，超过阈值时由它提交header
+   * @param threshold 缓存阈值，小于等于0表示一直缓存
+   */
+  ThresholdOutputStream(ResponseBuffer buffer, BufferedResponseWrapper owner, int threshold) {
+    this.buffer = buffer;
+    this.owner = owner;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (target == null && threshold > 0 && buffer.size() + 1 > threshold) {
+      startStreaming();
+    }
+    if (target != null) {
+      target.write(b);
+    } else {
+      buffer.write(b);
+    }
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (target == null && threshold > 0 && buffer.size() + len > threshold) {
+      startStreaming();
+    }
+    if (target != null) {
+      target.write(b, off, len);
+    } else {
+      buffer.write(b, off, len);
+    }
+    count += len;
+  }
+
+  private void startStreaming() throws IOException {
+    target = owner.commit();
+    buffer.writeTo(target);
+    buffer.reset();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (target != null) {
+      target.flush();
+    }
+  }
+
+  /**
+   * 是否已经切换到直接输出
+   */
+  boolean isStreaming() {
+    return target != null;
+  }
+
+  /**
+   * 写入的总字节数，包括已经直接输出的部分
+   */
+  int size() {
+    return count;
+  }
+
+  void reset() {
+    buffer.reset();
+    count = 0;
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+    throw new UnsupportedOperationException(getClass().getName() + " not support setWriteListener: " + writeListener);
+  }
+}
@@ -0,0 +1,58 @@
+package com.github.filter.io;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * zstd压缩(Content-Encoding: zstd, RFC 8878)，用aircompressor的纯Java实现，通过ServiceLoader注册。
+ * aircompressor是可选依赖，classpath里没有时构造函数失败，{@link CompressionCodecs}跳过这个实现。
+ * 固定使用zstd的默认级别，忽略level和Deflater的strategy；配置compressEncodings=zstd,gzip启用
+ */
+public final class ZstdCodec implements CompressionCodec {
+  private static final String IMPL = "io.airlift.compress.zstd.ZstdOutputStream";
+
+  public ZstdCodec() throws ClassNotFoundException {
+    Class.forName(IMPL, false, ZstdCodec.class.getClassLoader());
+  }
+
+  @Override
+  public String getEncoding() {
+    return "zstd";
+  }
+
+  @Override
+  public OutputStream compress(OutputStream out, int level, int strategy) throws IOException {
+    return Streams.open(out);
+  }
+
+  /**
+   * 单独放一个类，aircompressor不存在时ZstdCodec本身仍然可以加载
+   */
+  private static final class Streams {
+    static OutputStream open(OutputStream out) throws IOException {
+      return new ZstdOutputStream(new NonClosingOutputStream(out));
+    }
+  }
+
+  /**
+   * 和其他压缩流一样，close时只写完尾部数据，不关闭底层的流
+   */
+  private static final class NonClosingOutputStream extends FilterOutputStream {
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package com.github.filter.metrics;
+
+import com.github.filter.cache.ResponseCache;
+import com.github.filter.reporter.AccessLogQueue;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CoreFilter自身的开销统计。计数按线程分散到固定个数的stripe上，每个stripe独占两个cache line，
+ * 记录时只有一次无竞争的原子加，读取时再汇总
+ */
+public final class FilterMetrics implements FilterMetricsMBean {
+  public static final int REQUESTS = 0;
+  public static final int BYTES_BUFFERED = 1;
+  public static final int BUFFER_GROWTHS = 2;
+  public static final int STREAMED = 3;
+  public static final int COMPRESS_IN = 4;
+  public static final int COMPRESS_OUT = 5;
+  public static final int COMPRESS_CPU_NANOS = 6;
+  public static final int CHARSET_FALLBACKS = 7;
+  public static final int CHARSET_REDECODES = 8;
+  public static final int REDIRECTS = 9;
+  public static final int ERRORS = 10;
+  public static final int COPY_FAILURES = 11;
+  public static final int CHARSET_FAST_PATH = 12;
+  private static final String[] NAMES = {"requests", "bytesBuffered", "bufferGrowths", "streamedResponses", "compressInBytes", "compressOutBytes", "compressCpuNanos", "charsetFallbacks", "charsetRedecodes", "redirects", "errors", "copyFailures", "charsetFastPath"};
+  private static final Logger LOG = LoggerFactory.getLogger(FilterMetrics.class);
+  private static final String OBJECT_NAME = "com.github.filter:type=FilterMetrics";
+  private static final int STRIDE = 16;
+  private static final FilterMetrics INSTANCE = new FilterMetrics();
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final boolean cpuTime;
+  private final int mask;
+  private final AtomicLongArray cells;
+  private volatile ResponseCache responseCache;
+
+  private FilterMetrics() {
+    int n = 1;
+    int cpu = Runtime.getRuntime().availableProcessors();
+    while (n < cpu && n < 64) {
+      n <<= 1;
+    }
+    mask = n - 1;
+    cells = new AtomicLongArray(n * STRIDE);
+    boolean supported = false;
+    try {
+      supported = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+    } catch (Exception ignored) {
+    }
+    cpuTime = supported;
+  }
+
+  public static FilterMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * 注册到JMX，重复注册会忽略
+   */
+  public void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (Exception e) {
+      LOG.error("cannot register {}", OBJECT_NAME, e);
+    }
+  }
+
+  public void unregister() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOG.error("cannot unregister {}", OBJECT_NAME, e);
+    }
+  }
+
+  /**
+   * 设定页面缓存，命中率和占用空间随其他指标一起输出
+   *
+   * @param responseCache 页面缓存，可以为null
+   */
+  public void setResponseCache(ResponseCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
+  private int stripe() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((h ^ (h >>> 16)) & mask) * STRIDE;
+  }
+
+  public void increment(int metric) {
+    cells.incrementAndGet(stripe() + metric);
+  }
+
+  public void add(int metric, long delta) {
+    if (delta != 0) {
+      cells.addAndGet(stripe() + metric, delta);
+    }
+  }
+
+  public long get(int metric) {
+    long sum = 0;
+    for (int i = metric; i < cells.length(); i += STRIDE) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+
+  /**
+   * 当前线程的CPU时间，不支持时返回-1
+   */
+  public long threadCpuTime() {
+    return cpuTime ? threads.getCurrentThreadCpuTime() : -1;
+  }
+
+  /**
+   * 记录从start开始当前线程用掉的CPU时间
+   *
+   * @param metric 计数项
+   * @param start  之前{@link #threadCpuTime()}的返回值
+   */
+  public void addCpuTime(int metric, long start) {
+    if (start >= 0) {
+      add(metric, threads.getCurrentThreadCpuTime() - start);
+    }
+  }
+
+  /**
+   * 以"name value"每行一项的文本格式输出
+   */
+  public void writeTo(PrintWriter out) {
+    for (int i = 0; i < NAMES.length; i++) {
+      out.print(NAMES[i]);
+      out.print(' ');
+      out.println(get(i));
+    }
+    out.print("accessLogQueueDepth ");
+    out.println(getAccessLogQueueDepth());
+    out.print("accessLogDropped ");
+    out.println(getAccessLogDropped());
+    ResponseCache cache = responseCache;
+    if (cache != null) {
+      CacheStats s = cache.stats();
+      out.print("cacheHits ");
+      out.println(s.hitCount());
+      out.print("cacheMisses ");
+      out.println(s.missCount());
+      out.print("cacheHitRate ");
+      out.println(String.format("%.4f", s.hitRate()));
+      out.print("cacheEvictions ");
+      out.println(s.evictionCount());
+      out.print("cacheEntries ");
+      out.println(cache.size());
+      out.print("cacheBytes ");
+      out.println(cache.getBytes());
+    }
+  }
+
+  @Override
+  public long getRequests() {
+    return get(REQUESTS);
+  }
+
+  @Override
+  public long getBytesBuffered() {
+    return get(BYTES_BUFFERED);
+  }
+
+  @Override
+  public long getBufferGrowths() {
+    return get(BUFFER_GROWTHS);
+  }
+
+  @Override
+  public long getStreamedResponses() {
+    return get(STREAMED);
+  }
+
+  @Override
+  public long getCompressInBytes() {
+    return get(COMPRESS_IN);
+  }
+
+  @Override
+  public long getCompressOutBytes() {
+    return get(COMPRESS_OUT);
+  }
+
+  @Override
+  public long getCompressCpuNanos() {
+    return get(COMPRESS_CPU_NANOS);
+  }
+
+  @Override
+  public long getCharsetFallbacks() {
+    return get(CHARSET_FALLBACKS);
+  }
+
+  @Override
+  public long getCharsetRedecodes() {
+    return get(CHARSET_REDECODES);
+  }
+
+  @Override
+  public long getRedirects() {
+    return get(REDIRECTS);
+  }
+
+  @Override
+  public long getErrors() {
+    return get(ERRORS);
+  }
+
+  @Override
+  public long getCopyFailures() {
+    return get(COPY_FAILURES);
+  }
+
+  @Override
+  public long getCharsetFastPath() {
+    return get(CHARSET_FAST_PATH);
+  }
+
+  @Override
+  public int getAccessLogQueueDepth() {
+    return AccessLogQueue.getInstance().size();
+  }
+
+  @Override
+  public long getAccessLogDropped() {
+    return AccessLogQueue.getInstance().getDropped();
+  }
+
+  @Override
+  public long getCacheHits() {
+    ResponseCache cache = responseCache;
+    return cache == null ? 0 : cache.stats().hitCount();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    ResponseCache cache = responseCache;
+    return cache == null ? 0 : cache.stats().missCount();
+  }
+
+  @Override
+  public double getCacheHitRate() {
+    ResponseCache cache = responseCache;
+    return cache == null ? 0 : cache.stats().hitRate();
+  }
+
+  @Override
+  public long getCacheEvictions() {
+    ResponseCache cache = responseCache;
+    return cache == null ? 0 : cache.stats().evictionCount();
+  }
+
+  @Override
+  public long getCacheEntries() {
+    ResponseCache cache = responseCache;
+    return cache == null ? 0 : cache.size();
+  }
+
+  @Override
+  public long getCacheBytes() {
+    ResponseCache cache = responseCache;
+    return cache == null ? 0 : cache.getBytes();
+  }
+}
@@ -0,0 +1,48 @@
+package com.github.filter.metrics;
+
+/**
+ * 通过JMX暴露的filter自身开销指标
+ */
+public interface FilterMetricsMBean {
+  long getRequests();
+
+  long getBytesBuffered();
+
+  long getBufferGrowths();
+
+  long getStreamedResponses();
+
+  long getCompressInBytes();
+
+  long getCompressOutBytes();
+
+  long getCompressCpuNanos();
+
+  long getCharsetFallbacks();
+
+  long getCharsetRedecodes();
+
+  long getRedirects();
+
+  long getErrors();
+
+  long getCopyFailures();
+
+  long getCharsetFastPath();
+
+  int getAccessLogQueueDepth();
+
+  long getAccessLogDropped();
+
+  long getCacheHits();
+
+  long getCacheMisses();
+
+  double getCacheHitRate();
+
+  long getCacheEvictions();
+
+  long getCacheEntries();
+
+  long getCacheBytes();
+}
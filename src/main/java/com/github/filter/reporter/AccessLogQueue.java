@@ -0,0 +1,302 @@
+package com.github.filter.reporter;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.rocketmq.common.message.Message;
+import com.github.autoconf.helper.ConfigHelper;
+import com.github.filter.helpers.RequestContext;
+import com.github.trace.NamedThreadFactory;
+import com.github.trace.bean.AccessBean;
+import com.github.trace.sender.RocketMqSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 染色请求的访问日志队列。请求线程只把原始字段复制到预先分配好的环形缓冲区槽位里，
+ * 拼URL、构造AccessBean、序列化和发送都在后台线程里做。队列满了直接丢弃并计数，不会阻塞请求。
+ * 后台线程由CoreFilter的init启动、destroy停止，停止前把队列里剩下的都发完；空闲时一直睡眠，有新日志时才唤醒
+ */
+public final class AccessLogQueue {
+  private static final Logger LOG = LoggerFactory.getLogger(AccessLogQueue.class);
+  private static final int CAPACITY = 8192;
+  private static final int BATCH = 256;
+  private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long STOP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final AccessLogQueue INSTANCE = new AccessLogQueue(CAPACITY);
+  private final Slot[] slots;
+  private final int mask;
+  /**
+   * 下一个可以占用的序号，请求线程CAS递增
+   */
+  private final AtomicLong tail = new AtomicLong();
+  /**
+   * 下一个要消费的序号，只有后台线程写
+   */
+  private volatile long head = 0;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile boolean running = false;
+  /**
+   * 后台线程没有日志可发、准备睡眠时为true，请求线程看到之后负责唤醒
+   */
+  private volatile boolean sleeping = false;
+  private volatile Thread consumer;
+
+  private AccessLogQueue(int capacity) {
+    slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+    mask = capacity - 1;
+  }
+
+  public static AccessLogQueue getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * 启动后台发送线程，已经启动时忽略
+   */
+  public synchronized void start() {
+    if (consumer != null) {
+      return;
+    }
+    running = true;
+    consumer = new NamedThreadFactory("access-log-sender", true).newThread(new Runnable() {
+      @Override
+      public void run() {
+        consume();
+      }
+    });
+    consumer.start();
+  }
+
+  /**
+   * 停止接收新日志，等后台线程把队列里剩下的发完再退出，避免webapp重新部署时线程和classloader泄漏
+   */
+  public synchronized void shutdown() {
+    Thread t = consumer;
+    if (t == null) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(t);
+    try {
+      t.join(STOP_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (t.isAlive()) {
+      LOG.warn("access log sender not stopped in {}ms, {}", STOP_TIMEOUT_MILLIS, this);
+    }
+    consumer = null;
+  }
+
+  /**
+   * 在请求线程里调用，只做字段复制
+   *
+   * @param req      请求
+   * @param ctx      请求上下文，读取开始时间、各阶段耗时和用户id
+   * @param traceId  跟踪id
+   * @param rpcId    调用序号
+   * @param clientIp 客户端IP
+   * @param code     状态码
+   * @param size     响应大小
+   * @return 队列满了或者没有启动返回false
+   */
+  public boolean offer(HttpServletRequest req, RequestContext ctx, String traceId, String rpcId, String clientIp, int code, int size) {
+    if (!running) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    long seq;
+    do {
+      seq = tail.get();
+      if (seq - head >= slots.length) {
+        dropped.incrementAndGet();
+        return false;
+      }
+    } while (!tail.compareAndSet(seq, seq + 1));
+    Slot s = slots[(int) (seq & mask)];
+    s.stamp = ctx.getRequestTime(req);
+    s.costMicros = ctx.getCostMicros();
+    s.preChainMicros = ctx.getPreChainMicros();
+    s.chainMicros = ctx.getChainMicros();
+    s.copyMicros = ctx.getCopyMicros();
+    s.traceId = traceId;
+    s.rpcId = rpcId;
+    s.clientIp = clientIp;
+    s.uid = ctx.getUserId(req);
+    s.code = code;
+    s.size = size;
+    s.referer = req.getHeader("Referer");
+    s.userAgent = req.getHeader("User-Agent");
+    s.cookie = req.getHeader("Cookie");
+    s.serverName = req.getServerName();
+    s.serverPort = req.getServerPort();
+    s.queryString = req.getQueryString();
+    //最后写序号，后台线程看到序号之后才会读其他字段
+    s.published = seq;
+    if (sleeping) {
+      Thread t = consumer;
+      if (t != null) {
+        LockSupport.unpark(t);
+      }
+    }
+    return true;
+  }
+
+  private void consume() {
+    String serverIp = ConfigHelper.getServerInnerIP();
+    String profile = ConfigHelper.getProcessInfo().getProfile();
+    long lastDropped = 0;
+    long lastLog = System.currentTimeMillis();
+    while (running) {
+      int n = drain(serverIp, profile);
+      long now = System.currentTimeMillis();
+      if (now - lastLog >= TimeUnit.MINUTES.toMillis(1)) {
+        long d = dropped.get();
+        if (d != lastDropped) {
+          LOG.warn("{}", this);
+          lastDropped = d;
+        }
+        lastLog = now;
+      }
+      if (n == 0) {
+        //先声明要睡眠再检查一次，请求线程先发布再检查sleeping，两边至少有一方能看到对方
+        sleeping = true;
+        if (running && !hasNext()) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        sleeping = false;
+      }
+    }
+    //停止之前已经占到槽位的请求线程可能还在写，稍等一下再把剩下的发完
+    long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+    while (head < tail.get() && System.currentTimeMillis() < deadline) {
+      if (drain(serverIp, profile) == 0) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+    }
+    LOG.info("access log sender stopped, {}", this);
+  }
+
+  private boolean hasNext() {
+    long h = head;
+    return slots[(int) (h & mask)].published == h;
+  }
+
+  /**
+   * 发送最多一批已经发布的日志
+   *
+   * @return 发送的条数
+   */
+  private int drain(String serverIp, String profile) {
+    int n = 0;
+    long h = head;
+    while (n < BATCH) {
+      Slot s = slots[(int) (h & mask)];
+      if (s.published != h) {
+        break;
+      }
+      send(s, serverIp, profile);
+      s.clear();
+      head = ++h;
+      n++;
+    }
+    return n;
+  }
+
+  private void send(Slot s, String serverIp, String profile) {
+    try {
+      AccessBean b = new AccessBean();
+      b.setStamp(s.stamp);
+      b.setCost((int) (s.costMicros < 0 ? -1 : s.costMicros / 1000));
+      b.setTraceId(s.traceId);
+      b.setRpcId(s.rpcId);
+      b.setClientIp(s.clientIp);
+      b.setServerIp(serverIp);
+      b.setProfile(profile);
+      b.setCode(s.code);
+      b.setSize(s.size);
+      b.setReferer(s.referer);
+      b.setUserAgent(s.userAgent);
+      b.setCookie(s.cookie);
+      b.setUid(s.uid);
+      StringBuilder url = new StringBuilder(64).append(s.serverName);
+      if (s.serverPort != 80) {
+        url.append(':').append(s.serverPort);
+      }
+      if (s.queryString != null) {
+        url.append('?').append(s.queryString);
+      }
+      b.setUrl(url.toString());
+      //AccessBean没有分阶段耗时的字段，额外放到json里
+      JSONObject json = (JSONObject) JSON.toJSON(b);
+      json.put("costUs", s.costMicros);
+      json.put("preChainUs", s.preChainMicros);
+      json.put("chainUs", s.chainMicros);
+      json.put("copyUs", s.copyMicros);
+      RocketMqSender.getInstance().asyncSend(new Message("JinJingAccess", s.traceId, JSON.toJSONBytes(json)));
+      sent.incrementAndGet();
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      LOG.error("send access log error", e);
+    }
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * 队列里还没有发送的条数
+   */
+  public int size() {
+    return (int) Math.max(0, tail.get() - head);
+  }
+
+  @Override
+  public String toString() {
+    return "AccessLogQueue{size=" + size() + ", sent=" + sent.get() + ", dropped=" + dropped.get() + ", failed=" + failed.get() + '}';
+  }
+
+  private static final class Slot {
+    volatile long published = -1;
+    long stamp;
+    long costMicros;
+    long preChainMicros;
+    long chainMicros;
+    long copyMicros;
+    String traceId;
+    String rpcId;
+    String clientIp;
+    String uid;
+    int code;
+    int size;
+    String referer;
+    String userAgent;
+    String cookie;
+    String serverName;
+    int serverPort;
+    String queryString;
+
+    void clear() {
+      traceId = rpcId = clientIp = uid = referer = userAgent = cookie = serverName = queryString = null;
+    }
+  }
+}
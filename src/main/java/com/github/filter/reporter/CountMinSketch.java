@@ -0,0 +1,93 @@
+package com.github.filter.reporter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Count-Min Sketch，固定内存估算URI的出现次数，估计值只会偏大不会偏小。
+ * 用来判断还没有单独统计的URI是否足够热。累计次数到一定程度后所有格子减半（参照TinyLFU的做法），
+ * 避免大量随机URL把格子填满之后任何URL都被当成热点
+ */
+final class CountMinSketch {
+  private static final int DEPTH = 4;
+  private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+  private final int mask;
+  private final AtomicIntegerArray table;
+  private final AtomicInteger additions = new AtomicInteger();
+  private final AtomicBoolean resetting = new AtomicBoolean();
+  private final int resetAt;
+
+  /**
+   * @param width     每行的格子数，会向上取整到2的幂
+   * @param threshold 判断热点的次数，减半前后格子的平均计数在它的1/4到1/2之间
+   */
+  CountMinSketch(int width, int threshold) {
+    int n = 64;
+    while (n < width) {
+      n <<= 1;
+    }
+    mask = n - 1;
+    table = new AtomicIntegerArray(DEPTH * n);
+    resetAt = n * Math.max(4, threshold) / 4;
+  }
+
+  private int index(int row, int hash) {
+    //murmur3的fmix32，每行用不同的种子，保证各行的冲突互相独立
+    int h = hash ^ SEEDS[row];
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return row * (mask + 1) + (h & mask);
+  }
+
+  /**
+   * 计数加一
+   *
+   * @param key 归一化的URI
+   * @return 加一之后的估计次数
+   */
+  int add(String key) {
+    int hash = key.hashCode();
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < DEPTH; i++) {
+      int v = table.incrementAndGet(index(i, hash));
+      if (v < min) {
+        min = v;
+      }
+    }
+    if (additions.incrementAndGet() >= resetAt) {
+      halve();
+    }
+    return min;
+  }
+
+  /**
+   * 清空，上报周期结束时调用
+   */
+  void clear() {
+    for (int i = 0; i < table.length(); i++) {
+      table.set(i, 0);
+    }
+    additions.set(0);
+  }
+
+  /**
+   * 只让一个线程做减半，并发的自增可能丢一点，对估计值影响不大
+   */
+  private void halve() {
+    if (!resetting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      for (int i = 0; i < table.length(); i++) {
+        table.set(i, table.get(i) >>> 1);
+      }
+      additions.set(0);
+    } finally {
+      resetting.set(false);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.github.filter.reporter;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 按对数分桶的耗时直方图，单位是微秒，参照HdrHistogram的做法：小于16us的每微秒一个桶，
+ * 之后每翻一倍再细分16个桶，相对误差不超过1/16。内存固定，记录时只有一次无锁的自增。
+ * 本身不做分散，由{@link UriCounter}给每个cell配一个
+ */
+final class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  /**
+   * 最大能区分到2^32us（约70分钟），更大的都记在最后一个桶
+   */
+  private static final int MAX_BITS = 32;
+  private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+  private static final int BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS) * SUB_COUNT;
+
+  private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+
+  static int indexOf(long value) {
+    if (value < SUB_COUNT) {
+      return value < 0 ? 0 : (int) value;
+    }
+    if (value > MAX_VALUE) {
+      value = MAX_VALUE;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return SUB_COUNT + shift * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+  }
+
+  /**
+   * 桶内能表示的最大值，百分位数取这个值，宁可偏大不偏小
+   */
+  static long highestOf(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_COUNT - 1;
+    long low = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+    return low + (1L << shift) - 1;
+  }
+
+  void record(long cost) {
+    counts.incrementAndGet(indexOf(cost));
+  }
+
+  void add(LatencyHistogram o) {
+    for (int i = 0; i < BUCKETS; i++) {
+      int v = o.counts.get(i);
+      if (v != 0) {
+        counts.addAndGet(i, v);
+      }
+    }
+  }
+
+  /**
+   * 把计数转移到另一个直方图，原来的清零
+   */
+  void drainTo(LatencyHistogram o) {
+    for (int i = 0; i < BUCKETS; i++) {
+      int v = counts.getAndSet(i, 0);
+      if (v != 0) {
+        o.counts.addAndGet(i, v);
+      }
+    }
+  }
+
+  /**
+   * 一次遍历算出多个百分位数
+   *
+   * @param percentiles 升序排列的百分位，比如0.5, 0.99, 0.999
+   * @return 对应的耗时，没有数据时都是0
+   */
+  long[] percentiles(double... percentiles) {
+    int[] snapshot = new int[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long[] values = new long[percentiles.length];
+    if (total == 0) {
+      return values;
+    }
+    int p = 0;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS && p < percentiles.length; i++) {
+      seen += snapshot[i];
+      while (p < percentiles.length && seen >= Math.max(1, (long) Math.ceil(percentiles[p] * total))) {
+        values[p++] = highestOf(i);
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,15 @@
+package com.github.filter.reporter;
+
+/**
+ * 上报消息的出口，默认发到RocketMQ，测试时可以换成本地实现
+ */
+public interface MessageSink {
+  /**
+   * 异步发送一条消息
+   *
+   * @param topic 主题
+   * @param tags  标签，可以为空串
+   * @param body  消息内容
+   */
+  void send(String topic, String tags, byte[] body);
+}
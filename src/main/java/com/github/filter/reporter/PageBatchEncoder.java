@@ -0,0 +1,177 @@
+package com.github.filter.reporter;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 把多个URI的统计打包成一条二进制消息，整数都用varint，URI的目录部分放到字符串字典里只写一次。格式：
+ * <pre>
+ * magic 'J' 'P', version
+ * varint 时间(秒), string app, string serverIp
+ * varint 每条记录的数值个数
+ * varint 字典大小, string...
+ * varint 记录数
+ * 记录: varint 字典下标, string URI剩余部分, varint数值...
+ * </pre>
+ * string是varint长度加UTF-8内容。数值依次是totalPv, spiderPv, failPv, totalCostUs, pv50x, pv40x, pv30x, pv20x,
+ * pv304, preChainUs, chainUs, copyUs, p50Us, p99Us, p999Us，时间都是微秒，以后只在末尾追加，消费方按数值个数跳过不认识的部分
+ */
+final class PageBatchEncoder {
+  static final byte VERSION = 1;
+  private static final int[] SLOTS = {UriCounter.TOTAL_PV, UriCounter.SPIDER_PV, UriCounter.FAIL_PV, UriCounter.TOTAL_COST_US, UriCounter.PV_50X, UriCounter.PV_40X, UriCounter.PV_30X, UriCounter.PV_20X, UriCounter.PV_304, UriCounter.PRE_CHAIN_US, UriCounter.CHAIN_US, UriCounter.COPY_US};
+  static final int FIELDS = SLOTS.length + 3;
+  private final int maxBytes;
+  private final Buffer header = new Buffer(64);
+  private final Buffer dict = new Buffer(1024);
+  private final Buffer records = new Buffer(4096);
+  private final Buffer record = new Buffer(256);
+  private final Map<String, Integer> prefixes = Maps.newHashMap();
+  private int count = 0;
+
+  /**
+   * @param app      应用名
+   * @param serverIp 本机IP
+   * @param time     统计时间，毫秒
+   * @param maxBytes 一批的大小上限，单条记录超过上限时也会单独成一批
+   */
+  PageBatchEncoder(String app, String serverIp, long time, int maxBytes) {
+    this.maxBytes = maxBytes;
+    header.write('J');
+    header.write('P');
+    header.write(VERSION);
+    header.writeVarLong(time / 1000);
+    header.writeString(app);
+    header.writeString(serverIp);
+    header.writeVarLong(FIELDS);
+  }
+
+  /**
+   * 追加一条记录
+   *
+   * @return 超过大小上限时返回false，需要先发出去再重新开始一批
+   */
+  boolean add(String uri, UriCounter cnt, long[] percentiles) {
+    int pos = uri.lastIndexOf('/') + 1;
+    String prefix = uri.substring(0, pos);
+    Integer idx = prefixes.get(prefix);
+    int dictGrowth = 0;
+    if (idx == null) {
+      idx = prefixes.size();
+      dictGrowth = Buffer.stringSize(prefix);
+    }
+    record.reset();
+    record.writeVarLong(idx);
+    record.writeString(uri.substring(pos));
+    for (int slot : SLOTS) {
+      record.writeVarLong(cnt.get(slot));
+    }
+    for (long p : percentiles) {
+      record.writeVarLong(p);
+    }
+    //字典大小和记录数的varint最多各5个字节
+    if (count > 0 && header.size + dict.size + dictGrowth + records.size + record.size + 10 > maxBytes) {
+      return false;
+    }
+    if (dictGrowth > 0) {
+      prefixes.put(prefix, idx);
+      dict.writeString(prefix);
+    }
+    records.write(record.bytes, 0, record.size);
+    count++;
+    return true;
+  }
+
+  int count() {
+    return count;
+  }
+
+  byte[] toByteArray() {
+    Buffer out = new Buffer(header.size + dict.size + records.size + 10);
+    out.write(header.bytes, 0, header.size);
+    out.writeVarLong(prefixes.size());
+    out.write(dict.bytes, 0, dict.size);
+    out.writeVarLong(count);
+    out.write(records.bytes, 0, records.size);
+    return Arrays.copyOf(out.bytes, out.size);
+  }
+
+  private static final class Buffer {
+    private byte[] bytes;
+    private int size;
+
+    Buffer(int capacity) {
+      bytes = new byte[capacity];
+    }
+
+    static int varLongSize(long v) {
+      int n = 1;
+      while ((v & ~0x7FL) != 0) {
+        v >>>= 7;
+        n++;
+      }
+      return n;
+    }
+
+    static int stringSize(String s) {
+      int len = utf8Length(s);
+      return varLongSize(len) + len;
+    }
+
+    private static int utf8Length(String s) {
+      int len = 0;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          len++;
+        } else if (c < 0x800) {
+          len += 2;
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+          len += 4;
+          i++;
+        } else {
+          len += 3;
+        }
+      }
+      return len;
+    }
+
+    private void ensure(int n) {
+      if (size + n > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, size + n));
+      }
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    void write(int b) {
+      ensure(1);
+      bytes[size++] = (byte) b;
+    }
+
+    void write(byte[] b, int off, int len) {
+      ensure(len);
+      System.arraycopy(b, off, bytes, size, len);
+      size += len;
+    }
+
+    void writeVarLong(long v) {
+      ensure(10);
+      while ((v & ~0x7FL) != 0) {
+        bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      bytes[size++] = (byte) v;
+    }
+
+    void writeString(String s) {
+      byte[] b = (s == null ? "" : s).getBytes(Charsets.UTF_8);
+      writeVarLong(b.length);
+      write(b, 0, b.length);
+    }
+  }
+}
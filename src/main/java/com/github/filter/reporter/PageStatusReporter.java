@@ -1,41 +1,52 @@
 package com.github.filter.reporter;
 
 import com.alibaba.fastjson.JSON;
-import com.alibaba.rocketmq.common.message.Message;
+import com.alibaba.fastjson.JSONObject;
 import com.github.autoconf.helper.ConfigHelper;
+import com.github.filter.cache.ResponseCache;
+import com.github.filter.helpers.Pair;
+import com.github.filter.helpers.RequestContext;
 import com.github.trace.NamedThreadFactory;
 import com.github.trace.bean.URIBean;
-import com.github.trace.sender.RocketMqSender;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
-import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicIntegerArray;
-import java.util.regex.Pattern;
 
 /**
- * 定期上报页面状态信息
+ * 定期上报页面状态信息。两个StatTable轮流写入，上报时切换到另一个，再把切换前那个的计数取走清零，
+ * 切换前已经拿到旧表的请求写入的数据会在下一次轮到它时上报，写入方既不加锁也不会丢数据
  * Created by lirui on 2015-10-27 12:02.
  */
 public class PageStatusReporter implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(PageStatusReporter.class);
   private static final PageStatusReporter INSTANCE = new PageStatusReporter();
-  private static final Pattern NUM_PATTERN = Pattern.compile("[0-9]{2,}");
-  private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+  private static final String TOPIC = "JinJingPage";
+  private static final String TOPIC_BATCH = "JinJingPageBatch";
+  private static final int DEFAULT_BATCH_BYTES = 256 * 1024;
   private final int pvLimit = 10;
   private ScheduledExecutorService executor;
-  private ConcurrentMap<String, AtomicIntegerArray> counters = Maps.newConcurrentMap();
+  private ScheduledFuture<?> future;
+  private volatile StatTable[] tables = {new StatTable(), new StatTable()};
+  private volatile int active = 0;
+  private volatile ResponseCache responseCache;
+  private volatile int maxUris = 0;
+  private volatile MessageSink messageSink = RocketMqSink.INSTANCE;
+  private volatile boolean binary = false;
+  private volatile int maxBatchBytes = DEFAULT_BATCH_BYTES;
 
   private PageStatusReporter() {
     NamedThreadFactory factory = new NamedThreadFactory("page-status-reporter", true);
     executor = Executors.newSingleThreadScheduledExecutor(factory);
-    executor.schedule(this, 1, TimeUnit.MINUTES);
+    setInterval(60);
     Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
       @Override
       public void run() {
@@ -48,88 +59,217 @@ public class PageStatusReporter implements Runnable {
     return INSTANCE;
   }
 
-  public void stat(HttpServletRequest request, long cost, int status, boolean isSpider) {
-    String uri = getFormalURI(request);
-    AtomicIntegerArray cnt = counters.get(uri);
-    if (cnt == null) {
-      cnt = new AtomicIntegerArray(8);
-      AtomicIntegerArray old = counters.putIfAbsent(uri, cnt);
-      if (old != null) {
-        cnt = old;
-      }
-    }
-    cnt.incrementAndGet(0); //totalPv;
-    if (isSpider) {
-      cnt.incrementAndGet(1); //spiderPv
+  /**
+   * 设定页面缓存，定期上报时一起输出缓存的命中率和占用空间
+   *
+   * @param responseCache 页面缓存，可以为null
+   */
+  public void setResponseCache(ResponseCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
+  /**
+   * 替换消息出口，测试时用本地实现代替RocketMQ
+   *
+   * @param sink 消息出口，null表示恢复默认
+   */
+  public void setMessageSink(MessageSink sink) {
+    this.messageSink = sink == null ? RocketMqSink.INSTANCE : sink;
+  }
+
+  /**
+   * 设定上报格式，json是一个URI一条消息，发到JinJingPage，兼容老的消费方；
+   * binary是把多个URI打包成一条二进制消息，发到JinJingPageBatch
+   *
+   * @param format json或者binary
+   * @param maxBatchBytes 每条二进制消息的大小上限，小于等于0表示用默认值
+   */
+  public void setReportFormat(String format, int maxBatchBytes) {
+    this.binary = "binary".equalsIgnoreCase(format);
+    this.maxBatchBytes = maxBatchBytes > 0 ? maxBatchBytes : DEFAULT_BATCH_BYTES;
+  }
+
+  /**
+   * 设定上报周期
+   *
+   * @param seconds 上报间隔秒数
+   */
+  public synchronized void setInterval(int seconds) {
+    if (seconds <= 0) {
+      LOG.error("illegal interval: {}", seconds);
+      return;
     }
-    if (status >= 400 && !isSpider) {
-      // 只统计非爬虫的失败PV，避免问题页已删除问题，爬虫抓取的时候导致很多告警
-      cnt.incrementAndGet(2); //failPv
+    if (future != null) {
+      future.cancel(false);
     }
-    cnt.addAndGet(3, (int) cost); //totalCost
-    //新增针对状态码的细分统计
-    if (status >= 500) {
-      cnt.incrementAndGet(4);
-    } else if (status >= 400) {
-      cnt.incrementAndGet(5);
-    } else if (status >= 300) {
-      cnt.incrementAndGet(6);
-    } else {
-      cnt.incrementAndGet(7);
+    future = executor.scheduleAtFixedRate(this, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * 记录一次请求，只有总耗时
+   *
+   * @param cost 耗时，毫秒
+   */
+  public void stat(HttpServletRequest request, long cost, int status, boolean isSpider) {
+    counterOf(request).record(cost * 1000, 0, 0, 0, status, isSpider);
+  }
+
+  /**
+   * 记录一次请求，耗时和各阶段的耗时从请求上下文里取，精确到微秒
+   */
+  public void stat(HttpServletRequest request, RequestContext ctx, int status, boolean isSpider) {
+    counterOf(request).record(ctx.getCostMicros(), ctx.getPreChainMicros(), ctx.getChainMicros(), ctx.getCopyMicros(), status, isSpider);
+  }
+
+  private UriCounter counterOf(HttpServletRequest request) {
+    StatTable t = tables[active];
+    String raw = request.getRequestURI();
+    UriCounter cnt = raw == null ? null : t.getByRawUri(raw);
+    if (cnt == null) {
+      cnt = t.getOrCreate(raw, getFormalURI(raw));
     }
+    return cnt;
   }
 
   /**
    * 构造归一化的uri，避免uri过度分散导致数据库行数过多
    *
-   * @param request 请求对象
+   * @param uri 请求的原始uri
    * @return 归一化的URI
    */
-  private String getFormalURI(HttpServletRequest request) {
-    String uri = request.getRequestURI();
-    if (uri == null || uri.length() == 0 || uri.equals("/")) {
-      return "/";
-    } else {
-      //部分请求用';'分割，后面是请求参数
-      int pos = uri.indexOf(';');
-      if (pos != -1) {
-        uri = uri.substring(0, pos);
-      }
-      //百科的部分页面用了MD5作为.htm的前缀
-      String s = MD5_PATTERN.matcher(uri).replaceFirst("*");
-      if (s.length() != uri.length()) {
-        return s;
-      }
-      //问问和百科的部分页面都用了一些数字id作为.htm的前缀
-      return NUM_PATTERN.matcher(uri).replaceAll("*");
-    }
+  private String getFormalURI(String uri) {
+    return UriNormalizer.cached(uri);
+  }
+
+  /**
+   * 限定单独统计的URI个数，超过之后长尾URI合并到{@link StatTable#OTHER}，避免被爬虫的随机URL撑爆内存
+   *
+   * @param maxUris 单独上报的URI个数，0表示不限
+   */
+  public void setMaxUris(int maxUris) {
+    this.maxUris = Math.max(0, maxUris);
+    tables = new StatTable[] {new StatTable(this.maxUris, pvLimit), new StatTable(this.maxUris, pvLimit)};
   }
 
   @Override
   public void run() {
-    if (counters.size() <= 0) {
-      return;
+    //周期任务抛出异常之后就不会再执行了
+    try {
+      flush();
+    } catch (Throwable e) {
+      LOG.error("flush page status error", e);
+    }
+  }
+
+  private void flush() {
+    ResponseCache cache = responseCache;
+    if (cache != null) {
+      LOG.warn("{}", cache);
+    }
+    long start = System.nanoTime();
+    int idx = active;
+    StatTable old = tables[idx];
+    active = idx ^ 1;
+    List<Pair<String, UriCounter>> snapshots = old.drain();
+    int pruned = old.prune();
+    int uris = 0;
+    for (Pair<String, UriCounter> kv : snapshots) {
+      if (!StatTable.OTHER.equals(kv.first)) {
+        uris++;
+      }
     }
-    final Map<String, AtomicIntegerArray> old = counters;
-    counters = Maps.newConcurrentMap();
+    int folded = maxUris > 0 ? Math.max(0, uris - maxUris) : 0;
+    snapshots = topCounters(snapshots);
     String name = ConfigHelper.getProcessInfo().getName();
     String serverIp = ConfigHelper.getServerInnerIP();
-    for (Map.Entry<String, AtomicIntegerArray> kv : old.entrySet()) {
-      AtomicIntegerArray cnt = kv.getValue();
-      URIBean.Builder builder = new URIBean.Builder();
-      int totalPv = cnt.get(0);
+    MessageSink sink = messageSink;
+    PageBatchEncoder batch = binary ? new PageBatchEncoder(name, serverIp, System.currentTimeMillis(), maxBatchBytes) : null;
+    int sent = 0, batches = 0;
+    for (Pair<String, UriCounter> kv : snapshots) {
+      String uri = kv.first;
+      UriCounter cnt = kv.second;
+      long totalPv = cnt.get(UriCounter.TOTAL_PV);
       //只有总PV超过一定次数才上报，避免一些乱七八糟的URL上报
       if (totalPv <= pvLimit) {
-        LOG.warn("skip uri={}, pv={}", kv.getKey(), totalPv);
+        LOG.warn("skip uri={}, pv={}", uri, totalPv);
         continue;
       }
-      builder.app(name).uri(kv.getKey()).totalPv(totalPv).spiderPv(cnt.get(1)).failPv(cnt.get(2)).totalCost(cnt.get(3)).pv50x(cnt.get(4)).pv40x(cnt.get(5)).pv30x(cnt.get(6)).pv20x(cnt.get(7));
-      URIBean bean = builder.build();
-      bean.setServerIp(serverIp);
-      RocketMqSender.getInstance().asyncSend(new Message("JinJingPage", "", JSON.toJSONBytes(bean)));
+      long[] pct = cnt.getLatency().percentiles(0.5, 0.99, 0.999);
+      sent++;
+      if (batch == null) {
+        sink.send(TOPIC, "", toJson(name, serverIp, uri, cnt, pct));
+      } else if (!batch.add(uri, cnt, pct)) {
+        sink.send(TOPIC_BATCH, "", batch.toByteArray());
+        batches++;
+        batch = new PageBatchEncoder(name, serverIp, System.currentTimeMillis(), maxBatchBytes);
+        batch.add(uri, cnt, pct);
+      }
     }
-    if (old.size() > 0) {
-      LOG.warn("send {} URIBean to RocketMQ", old.size());
+    if (batch != null && batch.count() > 0) {
+      sink.send(TOPIC_BATCH, "", batch.toByteArray());
+      batches++;
     }
+    long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    if (!snapshots.isEmpty() || pruned > 0) {
+      LOG.warn("send {} URIBean in {} batches, cost={}ms, skipped={}, folded={}, pruned={}, tracked={}", sent, binary ? batches : sent, cost, snapshots.size() - sent, folded, pruned, old.size());
+    }
+  }
+
+  /**
+   * 不限容量时原样返回，否则按PV取前maxUris个，其余的合并到other
+   */
+  private List<Pair<String, UriCounter>> topCounters(List<Pair<String, UriCounter>> snapshots) {
+    int max = maxUris;
+    if (max <= 0 || snapshots.size() <= max) {
+      return snapshots;
+    }
+    UriCounter other = new UriCounter();
+    List<Pair<String, UriCounter>> all = Lists.newArrayListWithCapacity(snapshots.size());
+    for (Pair<String, UriCounter> kv : snapshots) {
+      if (StatTable.OTHER.equals(kv.first)) {
+        other.add(kv.second);
+      } else {
+        all.add(kv);
+      }
+    }
+    Collections.sort(all, new Comparator<Pair<String, UriCounter>>() {
+      @Override
+      public int compare(Pair<String, UriCounter> o1, Pair<String, UriCounter> o2) {
+        return Long.compare(o2.second.get(UriCounter.TOTAL_PV), o1.second.get(UriCounter.TOTAL_PV));
+      }
+    });
+    if (all.size() > max) {
+      for (Pair<String, UriCounter> kv : all.subList(max, all.size())) {
+        other.add(kv.second);
+      }
+      all = Lists.newArrayList(all.subList(0, max));
+    }
+    all.add(Pair.build(StatTable.OTHER, other));
+    return all;
+  }
+
+  /**
+   * 兼容老的消费方，一个URI一条JSON消息
+   */
+  private byte[] toJson(String name, String serverIp, String uri, UriCounter cnt, long[] pct) {
+    URIBean.Builder builder = new URIBean.Builder();
+    long costMicros = cnt.get(UriCounter.TOTAL_COST_US);
+    long costSum = costMicros / 1000;
+    int totalCost = (int) Math.min(costSum, Integer.MAX_VALUE);
+    builder.app(name).uri(uri).totalPv((int) cnt.get(UriCounter.TOTAL_PV)).spiderPv((int) cnt.get(UriCounter.SPIDER_PV)).failPv((int) cnt.get(UriCounter.FAIL_PV)).totalCost(totalCost).pv50x((int) cnt.get(UriCounter.PV_50X)).pv40x((int) cnt.get(UriCounter.PV_40X)).pv30x((int) cnt.get(UriCounter.PV_30X)).pv20x((int) cnt.get(UriCounter.PV_20X));
+    URIBean bean = builder.build();
+    bean.setServerIp(serverIp);
+    JSONObject json = (JSONObject) JSON.toJSON(bean);
+    json.put("pv304", cnt.get(UriCounter.PV_304));
+    //int的totalCost在热点页面上会溢出，另外给出long的总耗时，以及微秒级的分阶段耗时和分位数
+    json.put("totalCostLong", costSum);
+    json.put("totalCostUs", costMicros);
+    json.put("preChainUs", cnt.get(UriCounter.PRE_CHAIN_US));
+    json.put("chainUs", cnt.get(UriCounter.CHAIN_US));
+    json.put("copyUs", cnt.get(UriCounter.COPY_US));
+    json.put("p50Us", pct[0]);
+    json.put("p99Us", pct[1]);
+    json.put("p999Us", pct[2]);
+    return JSON.toJSONBytes(json);
   }
 }
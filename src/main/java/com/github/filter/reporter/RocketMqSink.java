@@ -0,0 +1,19 @@
+package com.github.filter.reporter;
+
+import com.alibaba.rocketmq.common.message.Message;
+import com.github.trace.sender.RocketMqSender;
+
+/**
+ * 通过RocketMqSender发送
+ */
+final class RocketMqSink implements MessageSink {
+  static final RocketMqSink INSTANCE = new RocketMqSink();
+
+  private RocketMqSink() {
+  }
+
+  @Override
+  public void send(String topic, String tags, byte[] body) {
+    RocketMqSender.getInstance().asyncSend(new Message(topic, tags, body));
+  }
+}
@@ -0,0 +1,162 @@
+package com.github.filter.reporter;
+
+import com.github.filter.helpers.Pair;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 上报用的统计数据，两个轮流使用，上报时取走计数但保留计数器，迟到的写入留到下一轮再取。除了归一化URI到计数器的映射，还缓存了原始URI到计数器的映射，
+ * 命中时不需要再做URI归一化，也不会产生新的对象。
+ * 限定了容量时，超过容量的新URI先在Count-Min Sketch里累计，足够热才单独统计，其余都记到other，
+ * 单独统计的URI最多是容量的2倍，上报时只取前面容量个
+ */
+final class StatTable {
+  /**
+   * 原始URI索引的上限，超过之后新的原始URI每次都走归一化
+   */
+  static final int MAX_RAW_URIS = 20000;
+  /**
+   * 连续这么多轮没有请求的计数器会被删掉
+   */
+  static final int MAX_IDLE_ROUNDS = 2;
+  /**
+   * 长尾URI合并后的名字
+   */
+  static final String OTHER = "/_other_";
+  private final ConcurrentMap<String, UriCounter> counters = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, UriCounter> rawIndex = Maps.newConcurrentMap();
+  private final UriCounter other = new UriCounter();
+  /**
+   * 上一轮删掉的计数器，删除前拿到引用的写入方可能还在写，下一轮drain时再取一次，残留的计数并入快照
+   */
+  private List<Pair<String, UriCounter>> retired = Lists.newArrayList();
+  private final int maxUris;
+  private final int admitPv;
+  private final CountMinSketch sketch;
+
+  StatTable() {
+    this(0, 0);
+  }
+
+  /**
+   * @param maxUris 单独统计的URI个数，0表示不限
+   * @param admitPv 超过容量后，新URI在一个周期内的PV超过这个值才单独统计
+   */
+  StatTable(int maxUris, int admitPv) {
+    this.maxUris = maxUris;
+    this.admitPv = admitPv;
+    this.sketch = maxUris > 0 ? new CountMinSketch(Math.min(maxUris * 16, 1 << 16), admitPv) : null;
+  }
+
+  /**
+   * 通过原始URI查找计数器
+   *
+   * @param rawUri request.getRequestURI()
+   * @return 没有缓存过返回null
+   */
+  UriCounter getByRawUri(String rawUri) {
+    return rawIndex.get(rawUri);
+  }
+
+  /**
+   * 查找或者创建归一化URI的计数器，同时建立原始URI的索引
+   *
+   * @param rawUri    原始URI
+   * @param formalUri 归一化的URI
+   * @return 计数器
+   */
+  UriCounter getOrCreate(String rawUri, String formalUri) {
+    UriCounter cnt = counters.get(formalUri);
+    if (cnt == null) {
+      if (maxUris > 0 && counters.size() >= maxUris && (counters.size() >= maxUris * 2 || sketch.add(formalUri) <= admitPv)) {
+        return other;
+      }
+      cnt = new UriCounter();
+      UriCounter old = counters.putIfAbsent(formalUri, cnt);
+      if (old != null) {
+        cnt = old;
+      }
+    }
+    if (rawUri != null && rawIndex.size() < MAX_RAW_URIS) {
+      rawIndex.putIfAbsent(rawUri, cnt);
+    }
+    return cnt;
+  }
+
+  /**
+   * 取走所有计数器的数据，只在上报线程里调用
+   *
+   * @return 有请求的URI及其快照，包括长尾URI的汇总
+   */
+  List<Pair<String, UriCounter>> drain() {
+    Map<String, UriCounter> residue = Maps.newHashMap();
+    for (Pair<String, UriCounter> kv : retired) {
+      UriCounter snap = kv.second.drain();
+      if (snap.get(UriCounter.TOTAL_PV) > 0) {
+        residue.put(kv.first, snap);
+      }
+    }
+    retired = Lists.newArrayList();
+    List<Pair<String, UriCounter>> snapshots = Lists.newArrayListWithCapacity(counters.size() + residue.size() + 1);
+    for (Map.Entry<String, UriCounter> kv : counters.entrySet()) {
+      UriCounter cnt = kv.getValue();
+      UriCounter snap = cnt.drain();
+      UriCounter left = residue.remove(kv.getKey());
+      if (left != null) {
+        snap.add(left);
+      }
+      if (snap.get(UriCounter.TOTAL_PV) > 0) {
+        cnt.idleRounds = 0;
+        snapshots.add(Pair.build(kv.getKey(), snap));
+      } else {
+        cnt.idleRounds++;
+      }
+    }
+    //已经删掉、又没有重新创建的URI单独上报
+    for (Map.Entry<String, UriCounter> kv : residue.entrySet()) {
+      snapshots.add(Pair.build(kv.getKey(), kv.getValue()));
+    }
+    UriCounter snap = other.drain();
+    if (snap.get(UriCounter.TOTAL_PV) > 0) {
+      snapshots.add(Pair.build(OTHER, snap));
+    }
+    if (sketch != null) {
+      sketch.clear();
+    }
+    return snapshots;
+  }
+
+  /**
+   * 删掉长时间没有请求的计数器，同时删除指向它们的原始URI索引。
+   * 删除之后不再有新的写入方拿到它们，但已经拿到的写入方可能还没写完，这些计数器留到下一轮drain时再取一次
+   *
+   * @return 删除的个数
+   */
+  int prune() {
+    Set<UriCounter> removed = Sets.newIdentityHashSet();
+    for (Map.Entry<String, UriCounter> kv : counters.entrySet()) {
+      if (kv.getValue().idleRounds >= MAX_IDLE_ROUNDS && counters.remove(kv.getKey(), kv.getValue())) {
+        removed.add(kv.getValue());
+        retired.add(Pair.build(kv.getKey(), kv.getValue()));
+      }
+    }
+    if (!removed.isEmpty()) {
+      for (Map.Entry<String, UriCounter> kv : rawIndex.entrySet()) {
+        if (removed.contains(kv.getValue())) {
+          rawIndex.remove(kv.getKey(), kv.getValue());
+        }
+      }
+    }
+    return removed.size();
+  }
+
+  int size() {
+    return counters.size();
+  }
+}
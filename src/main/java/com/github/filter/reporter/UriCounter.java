@@ -0,0 +1,190 @@
+package com.github.filter.reporter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 单个URI的计数器，参照LongAdder的做法按线程分散到多个cell，只有出现竞争时才扩容。
+ * 耗时直方图也按cell分开，热点URI上不同线程不会争用同一个桶，上报时再合并
+ */
+final class UriCounter {
+  static final int TOTAL_PV = 0;
+  static final int SPIDER_PV = 1;
+  static final int FAIL_PV = 2;
+  static final int TOTAL_COST_US = 3;
+  static final int PV_50X = 4;
+  static final int PV_40X = 5;
+  static final int PV_30X = 6;
+  static final int PV_20X = 7;
+  static final int PV_304 = 8;
+  /**
+   * 进入filter到调用后续filter之前
+   */
+  static final int PRE_CHAIN_US = 9;
+  /**
+   * 后续filter和servlet的处理时间
+   */
+  static final int CHAIN_US = 10;
+  /**
+   * 后续处理结束到响应输出完，主要是缓存和压缩的开销
+   */
+  static final int COPY_US = 11;
+  static final int SLOTS = 12;
+  /**
+   * 每个cell占16个long，正好两个cache line，避免不同cell之间的伪共享
+   */
+  private static final int CELL_SIZE = 16;
+  private static final int MAX_CELLS;
+  private static final AtomicReferenceFieldUpdater<UriCounter, Cell[]> CELLS = AtomicReferenceFieldUpdater.newUpdater(UriCounter.class, Cell[].class, "cells");
+
+  static {
+    int n = 1;
+    int cpu = Runtime.getRuntime().availableProcessors();
+    while (n < cpu && n < 64) {
+      n <<= 1;
+    }
+    MAX_CELLS = n;
+  }
+
+  private volatile Cell[] cells = {new Cell()};
+  /**
+   * 连续多少个上报周期没有请求，只在上报线程里读写
+   */
+  int idleRounds = 0;
+
+  private static int probe(int mask) {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  /**
+   * 记录一次请求
+   *
+   * @param cost     总耗时，微秒
+   * @param preChain 调用后续filter之前的耗时，微秒
+   * @param chain    后续filter和servlet的耗时，微秒
+   * @param copy     输出响应的耗时，微秒
+   * @param status   状态码
+   * @param isSpider 是否爬虫
+   */
+  void record(long cost, long preChain, long chain, long copy, int status, boolean isSpider) {
+    Cell[] cs = cells;
+    Cell cell = cs[probe(cs.length - 1)];
+    AtomicLongArray c = cell.slots;
+    long v = c.get(TOTAL_PV);
+    if (!c.compareAndSet(TOTAL_PV, v, v + 1)) {
+      c.incrementAndGet(TOTAL_PV);
+      grow(cs);
+    }
+    if (isSpider) {
+      c.incrementAndGet(SPIDER_PV);
+    }
+    if (status >= 400 && !isSpider) {
+      // 只统计非爬虫的失败PV，避免问题页已删除问题，爬虫抓取的时候导致很多告警
+      c.incrementAndGet(FAIL_PV);
+    }
+    c.addAndGet(TOTAL_COST_US, cost);
+    c.addAndGet(PRE_CHAIN_US, preChain);
+    c.addAndGet(CHAIN_US, chain);
+    c.addAndGet(COPY_US, copy);
+    cell.latency.record(cost);
+    //新增针对状态码的细分统计
+    if (status >= 500) {
+      c.incrementAndGet(PV_50X);
+    } else if (status >= 400) {
+      c.incrementAndGet(PV_40X);
+    } else if (status >= 300) {
+      c.incrementAndGet(PV_30X);
+    } else {
+      c.incrementAndGet(PV_20X);
+    }
+    //ETag命中的304单独统计，便于观察节省的流量
+    if (status == 304) {
+      c.incrementAndGet(PV_304);
+    }
+  }
+
+  /**
+   * 出现竞争时把cell个数翻倍，已有的cell原样保留，正在写旧数组的线程不会丢数据
+   */
+  private void grow(Cell[] cs) {
+    int n = cs.length;
+    if (n >= MAX_CELLS) {
+      return;
+    }
+    Cell[] bigger = new Cell[n << 1];
+    System.arraycopy(cs, 0, bigger, 0, n);
+    for (int i = n; i < bigger.length; i++) {
+      bigger[i] = new Cell();
+    }
+    CELLS.compareAndSet(this, cs, bigger);
+  }
+
+  /**
+   * 把另一个计数器的数据累加进来，上报时合并长尾URI用
+   */
+  void add(UriCounter o) {
+    Cell c = cells[0];
+    for (int i = 0; i < SLOTS; i++) {
+      c.slots.addAndGet(i, o.get(i));
+    }
+    for (Cell oc : o.cells) {
+      c.latency.add(oc.latency);
+    }
+  }
+
+  /**
+   * 取走当前的计数并清零，清零之后的并发写入留到下次再取，不会丢失
+   *
+   * @return 取走部分的快照
+   */
+  UriCounter drain() {
+    UriCounter snap = new UriCounter();
+    Cell dst = snap.cells[0];
+    for (Cell c : cells) {
+      for (int i = 0; i < SLOTS; i++) {
+        long v = c.slots.getAndSet(i, 0);
+        if (v != 0) {
+          dst.slots.addAndGet(i, v);
+        }
+      }
+      c.latency.drainTo(dst.latency);
+    }
+    return snap;
+  }
+
+  /**
+   * 所有cell合并后的耗时直方图，drain出来的快照只有一个cell，直接返回
+   */
+  LatencyHistogram getLatency() {
+    Cell[] cs = cells;
+    if (cs.length == 1) {
+      return cs[0].latency;
+    }
+    LatencyHistogram merged = new LatencyHistogram();
+    for (Cell c : cs) {
+      merged.add(c.latency);
+    }
+    return merged;
+  }
+
+  /**
+   * 汇总所有cell
+   *
+   * @param slot 计数项
+   * @return 总数
+   */
+  long get(int slot) {
+    long sum = 0;
+    for (Cell c : cells) {
+      sum += c.slots.get(slot);
+    }
+    return sum;
+  }
+
+  private static final class Cell {
+    private final AtomicLongArray slots = new AtomicLongArray(CELL_SIZE);
+    private final LatencyHistogram latency = new LatencyHistogram();
+  }
+}
@@ -0,0 +1,92 @@
+package com.github.filter.reporter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * URI归一化，一次扫描完成';'截断、32位16进制串替换以及2位以上数字替换，结果与原先的正则实现完全一致：
+ * <ol>
+ * <li>空串和"/"返回"/"</li>
+ * <li>截掉第一个';'及后面的内容</li>
+ * <li>如果有连续32个16进制字符，把最左边的这32个替换成'*'后直接返回</li>
+ * <li>否则把所有连续2个以上的数字替换成'*'</li>
+ * </ol>
+ */
+public final class UriNormalizer {
+  private static final int MD5_LENGTH = 32;
+  /**
+   * 热点原始URI的归一化结果，跨上报周期保留
+   */
+  private static final Cache<String, String> CACHE = CacheBuilder.newBuilder().maximumSize(10000).concurrencyLevel(16).build();
+
+  private UriNormalizer() {
+  }
+
+  /**
+   * 带缓存的归一化
+   *
+   * @param uri 原始uri
+   * @return 归一化的URI
+   */
+  public static String cached(String uri) {
+    if (uri == null) {
+      return "/";
+    }
+    String formal = CACHE.getIfPresent(uri);
+    if (formal == null) {
+      formal = normalize(uri);
+      CACHE.put(uri, formal);
+    }
+    return formal;
+  }
+
+  public static String normalize(String uri) {
+    if (uri == null || uri.length() == 0 || uri.equals("/")) {
+      return "/";
+    }
+    //部分请求用';'分割，后面是请求参数
+    int end = uri.indexOf(';');
+    if (end == -1) {
+      end = uri.length();
+    }
+    StringBuilder sbd = null;
+    int copied = 0, hexRun = 0, digitRun = 0;
+    for (int i = 0; i < end; i++) {
+      char c = uri.charAt(i);
+      boolean digit = c >= '0' && c <= '9';
+      if (digit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+        //百科的部分页面用了MD5作为.htm的前缀，只替换第一个，其余部分保持原样
+        if (++hexRun == MD5_LENGTH) {
+          int start = i - MD5_LENGTH + 1;
+          return new StringBuilder(end - MD5_LENGTH + 1).append(uri, 0, start).append('*').append(uri, i + 1, end).toString();
+        }
+      } else {
+        hexRun = 0;
+      }
+      if (digit) {
+        digitRun++;
+      } else {
+        //问问和百科的部分页面都用了一些数字id作为.htm的前缀
+        if (digitRun >= 2) {
+          if (sbd == null) {
+            sbd = new StringBuilder(end);
+          }
+          sbd.append(uri, copied, i - digitRun).append('*');
+          copied = i;
+        }
+        digitRun = 0;
+      }
+    }
+    if (digitRun >= 2) {
+      if (sbd == null) {
+        sbd = new StringBuilder(end);
+      }
+      sbd.append(uri, copied, end - digitRun).append('*');
+      copied = end;
+    }
+    if (sbd == null) {
+      return end == uri.length() ? uri : uri.substring(0, end);
+    }
+    return sbd.append(uri, copied, end).toString();
+  }
+}
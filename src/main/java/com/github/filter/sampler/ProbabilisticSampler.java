@@ -0,0 +1,33 @@
+package com.github.filter.sampler;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按固定概率采样
+ */
+public class ProbabilisticSampler implements Sampler {
+  private final double rate;
+
+  /**
+   * @param rate 采样率，0到1之间
+   */
+  public ProbabilisticSampler(double rate) {
+    this.rate = Math.max(0, Math.min(1, rate));
+  }
+
+  @Override
+  public boolean sampleOnEntry(HttpServletRequest request, String uri) {
+    return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+  }
+
+  @Override
+  public boolean sampleOnExit(HttpServletRequest request, String uri, boolean sampled, int status, long cost) {
+    return sampled;
+  }
+
+  @Override
+  public String toString() {
+    return "ProbabilisticSampler{rate=" + rate + '}';
+  }
+}
@@ -0,0 +1,67 @@
+package com.github.filter.sampler;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个归一化URI每秒最多采样固定条数，热点页面不会把总线打满，冷门页面也能采到
+ */
+public class RateLimitingSampler implements Sampler {
+  private static final int COUNT_BITS = 20;
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+  private final int perSecond;
+  /**
+   * 每个URI一个计数，高位是秒数，低20位是这一秒内已经采样的条数
+   */
+  private final LoadingCache<String, AtomicLong> windows;
+
+  /**
+   * @param perSecond 每个URI每秒的采样条数
+   */
+  public RateLimitingSampler(int perSecond) {
+    this.perSecond = (int) Math.min(Math.max(0, perSecond), COUNT_MASK);
+    this.windows = CacheBuilder.newBuilder().maximumSize(10000).build(new CacheLoader<String, AtomicLong>() {
+      @Override
+      public AtomicLong load(String key) {
+        return new AtomicLong();
+      }
+    });
+  }
+
+  @Override
+  public boolean sampleOnEntry(HttpServletRequest request, String uri) {
+    if (perSecond <= 0) {
+      return false;
+    }
+    AtomicLong window = windows.getUnchecked(uri == null ? "/" : uri);
+    long now = System.currentTimeMillis() / 1000;
+    while (true) {
+      long v = window.get();
+      long next;
+      if (v >>> COUNT_BITS != now) {
+        next = (now << COUNT_BITS) | 1;
+      } else if ((v & COUNT_MASK) < perSecond) {
+        next = v + 1;
+      } else {
+        return false;
+      }
+      if (window.compareAndSet(v, next)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public boolean sampleOnExit(HttpServletRequest request, String uri, boolean sampled, int status, long cost) {
+    return sampled;
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimitingSampler{perSecond=" + perSecond + '}';
+  }
+}
@@ -0,0 +1,29 @@
+package com.github.filter.sampler;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * 决定非染色请求是否发送访问日志。分两个阶段：请求进来时做头部采样，响应结束后还可以根据状态码和耗时补采
+ */
+public interface Sampler {
+  /**
+   * 请求进来时调用
+   *
+   * @param request 请求
+   * @param uri     归一化的URI
+   * @return 是否采样
+   */
+  boolean sampleOnEntry(HttpServletRequest request, String uri);
+
+  /**
+   * 响应结束之后调用
+   *
+   * @param request 请求
+   * @param uri     归一化的URI
+   * @param sampled 请求进来时的采样结果
+   * @param status  状态码
+   * @param cost    耗时，毫秒
+   * @return 是否发送访问日志
+   */
+  boolean sampleOnExit(HttpServletRequest request, String uri, boolean sampled, int status, long cost);
+}
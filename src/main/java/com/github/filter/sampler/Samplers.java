@@ -0,0 +1,130 @@
+package com.github.filter.sampler;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+
+/**
+ * 根据filter的init-param组合采样策略：
+ * <ul>
+ * <li>sampleRate: 按概率采样，0到1之间</li>
+ * <li>sampleRatePerUri: 每个归一化URI每秒最多采样的条数，和sampleRate同时配置时两者都满足才采样</li>
+ * <li>sampleSlowMs: 耗时超过这个值的请求都发送</li>
+ * <li>sample5xx: true表示5xx请求都发送</li>
+ * <li>samplerClass: 自定义的Sampler实现，配置之后忽略上面的参数</li>
+ * </ul>
+ */
+public final class Samplers {
+  private static final Logger LOG = LoggerFactory.getLogger(Samplers.class);
+
+  private Samplers() {
+  }
+
+  /**
+   * 读取配置
+   *
+   * @param conf filter配置
+   * @return 没有任何采样配置时返回null
+   */
+  public static Sampler from(FilterConfig conf) {
+    String clazz = conf.getInitParameter("samplerClass");
+    if (!Strings.isNullOrEmpty(clazz)) {
+      try {
+        return Class.forName(clazz.trim()).asSubclass(Sampler.class).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+        LOG.error("cannot create sampler {}", clazz, e);
+        return null;
+      }
+    }
+    List<Sampler> heads = Lists.newArrayList();
+    List<Sampler> tails = Lists.newArrayList();
+    String rate = conf.getInitParameter("sampleRate");
+    if (!Strings.isNullOrEmpty(rate)) {
+      Double r = Doubles.tryParse(rate.trim());
+      if (r != null && r > 0) {
+        heads.add(new ProbabilisticSampler(r));
+      } else if (r == null) {
+        LOG.error("illegal sampleRate: {}", rate);
+      }
+    }
+    int perUri = parseInt(conf.getInitParameter("sampleRatePerUri"));
+    if (perUri > 0) {
+      heads.add(new RateLimitingSampler(perUri));
+    }
+    int slow = parseInt(conf.getInitParameter("sampleSlowMs"));
+    boolean serverError = "true".equalsIgnoreCase(conf.getInitParameter("sample5xx"));
+    if (slow > 0 || serverError) {
+      tails.add(new TailSampler(slow, serverError));
+    }
+    if (heads.isEmpty() && tails.isEmpty()) {
+      return null;
+    }
+    Sampler sampler = new CompositeSampler(heads, tails);
+    LOG.info("{}", sampler);
+    return sampler;
+  }
+
+  private static int parseInt(String value) {
+    if (Strings.isNullOrEmpty(value)) {
+      return 0;
+    }
+    Integer n = Ints.tryParse(value.trim());
+    if (n == null) {
+      LOG.error("illegal number: {}", value);
+      return 0;
+    }
+    return n;
+  }
+
+  /**
+   * 头部采样要所有策略都同意，尾部补采只要有一个策略同意
+   */
+  static final class CompositeSampler implements Sampler {
+    private final List<Sampler> heads;
+    private final List<Sampler> tails;
+
+    CompositeSampler(List<Sampler> heads, List<Sampler> tails) {
+      this.heads = ImmutableList.copyOf(heads);
+      this.tails = ImmutableList.copyOf(tails);
+    }
+
+    @Override
+    public boolean sampleOnEntry(HttpServletRequest request, String uri) {
+      if (heads.isEmpty()) {
+        return false;
+      }
+      for (Sampler s : heads) {
+        if (!s.sampleOnEntry(request, uri)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean sampleOnExit(HttpServletRequest request, String uri, boolean sampled, int status, long cost) {
+      if (sampled) {
+        return true;
+      }
+      for (Sampler s : tails) {
+        if (s.sampleOnExit(request, uri, false, status, cost)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "CompositeSampler{heads=" + heads + ", tails=" + tails + '}';
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.github.filter.sampler;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * 响应结束后补采，慢请求和5xx请求总是发送访问日志
+ */
+public class TailSampler implements Sampler {
+  private final long slowMillis;
+  private final boolean serverError;
+
+  /**
+   * @param slowMillis  耗时超过这个值的请求都发送，小于等于0表示不按耗时补采
+   * @param serverError 是否发送所有5xx请求
+   */
+  public TailSampler(long slowMillis, boolean serverError) {
+    this.slowMillis = slowMillis;
+    this.serverError = serverError;
+  }
+
+  @Override
+  public boolean sampleOnEntry(HttpServletRequest request, String uri) {
+    return false;
+  }
+
+  @Override
+  public boolean sampleOnExit(HttpServletRequest request, String uri, boolean sampled, int status, long cost) {
+    return sampled || (serverError && status >= 500) || (slowMillis > 0 && cost >= slowMillis);
+  }
+
+  @Override
+  public String toString() {
+    return "TailSampler{slowMillis=" + slowMillis + ", serverError=" + serverError + '}';
+  }
+}
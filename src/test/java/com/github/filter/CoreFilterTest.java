@@ -0,0 +1,209 @@
+package com.github.filter;
+
+import com.github.filter.metrics.FilterMetrics;
+import com.github.filter.reporter.MessageSink;
+import com.github.filter.reporter.PageStatusReporter;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过filter完整地走一遍请求，检查ETag命中时的304以及页面统计
+ */
+public class CoreFilterTest {
+  private static final String PAGE = "<html><body>hello etag</body></html>";
+  private final List<byte[]> batches = Lists.newArrayList();
+  private CoreFilter filter;
+
+  @Before
+  public void setUp() throws Exception {
+    PageStatusReporter reporter = PageStatusReporter.getInstance();
+    reporter.setReportFormat("binary", 0);
+    reporter.setMessageSink(new MessageSink() {
+      @Override
+      public void send(String topic, String tags, byte[] body) {
+        batches.add(body);
+      }
+    });
+    //两张表轮流使用，各刷一次把之前的数据清掉
+    reporter.run();
+    reporter.run();
+    batches.clear();
+    filter = new CoreFilter();
+    filter.init(config(ImmutableMap.of("etagPatterns", "/etag/*", "gzip", "false")));
+  }
+
+  @After
+  public void tearDown() {
+    filter.destroy();
+    PageStatusReporter.getInstance().setMessageSink(null);
+    PageStatusReporter.getInstance().setReportFormat("json", 0);
+  }
+
+  @Test
+  public void testIfNoneMatchCountsAs304() throws Exception {
+    FakeResponse first = doFilter(new FakeRequest().uri("/etag/page.htm"));
+    assertEquals(200, first.getStatus());
+    assertEquals(PAGE, new String(first.getBody(), Charsets.UTF_8));
+    String etag = first.getHeader("ETag");
+    assertNotNull(etag);
+    int hits = 11;
+    for (int i = 0; i < hits; i++) {
+      FakeResponse res = doFilter(new FakeRequest().uri("/etag/page.htm").header("If-None-Match", etag));
+      assertEquals(304, res.getStatus());
+      assertEquals(0, res.getBody().length);
+    }
+    PageStatusReporter reporter = PageStatusReporter.getInstance();
+    reporter.run();
+    reporter.run();
+    Map<String, long[]> stats = decode(batches);
+    long[] values = stats.get("/etag/page.htm");
+    assertNotNull(stats.toString(), values);
+    //依次是totalPv, spiderPv, failPv, totalCostUs, pv50x, pv40x, pv30x, pv20x, pv304
+    assertEquals(hits + 1, values[0]);
+    assertEquals(hits, values[6]);
+    assertEquals(1, values[7]);
+    assertEquals(hits, values[8]);
+  }
+
+  @Test
+  public void testVaryVariantsCachedSeparately() throws Exception {
+    CoreFilter cached = new CoreFilter();
+    cached.init(config(ImmutableMap.of("cacheSize", "1048576", "gzip", "false")));
+    final AtomicInteger calls = new AtomicInteger();
+    FilterChain chain = new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+        calls.incrementAndGet();
+        HttpServletResponse r = (HttpServletResponse) response;
+        r.setContentType("text/html; charset=UTF-8");
+        r.setHeader("Cache-Control", "max-age=60");
+        r.setHeader("Vary", "Accept-Language");
+        r.getWriter().write("lang=" + ((HttpServletRequest) request).getHeader("Accept-Language"));
+      }
+    };
+    try {
+      //两个语言交替访问，各自的变体不能互相覆盖
+      for (int round = 0; round < 3; round++) {
+        for (String lang : new String[] {"en", "zh"}) {
+          FakeResponse res = new FakeResponse();
+          cached.doFilter(new FakeRequest().uri("/vary/page.htm").header("Accept-Language", lang).build(), res.build(), chain);
+          assertEquals(200, res.getStatus());
+          assertEquals("lang=" + lang, new String(res.getBody(), Charsets.UTF_8));
+        }
+      }
+      assertEquals(2, calls.get());
+      FilterMetrics metrics = FilterMetrics.getInstance();
+      assertEquals(4, metrics.getCacheHits());
+      assertEquals(2, metrics.getCacheEntries());
+      assertTrue(metrics.getCacheBytes() > 0);
+    } finally {
+      cached.destroy();
+      FilterMetrics.getInstance().setResponseCache(null);
+    }
+  }
+
+  private FakeResponse doFilter(FakeRequest fake) throws Exception {
+    FakeResponse res = new FakeResponse();
+    filter.doFilter(fake.build(), res.build(), new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+        HttpServletResponse r = (HttpServletResponse) response;
+        r.setContentType("text/html; charset=UTF-8");
+        r.getWriter().write(PAGE);
+      }
+    });
+    return res;
+  }
+
+  private static FilterConfig config(final Map<String, String> params) {
+    return (FilterConfig) Proxy.newProxyInstance(CoreFilterTest.class.getClassLoader(), new Class[] {FilterConfig.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+        switch (m.getName()) {
+          case "getInitParameter":
+            return params.get((String) args[0]);
+          case "getInitParameterNames":
+            return Collections.enumeration(params.keySet());
+          case "getFilterName":
+            return "coreFilter";
+          default:
+            return null;
+        }
+      }
+    });
+  }
+
+  /**
+   * 按PageBatchEncoder的格式解出每个URI的数值
+   */
+  private static Map<String, long[]> decode(List<byte[]> batches) {
+    Map<String, long[]> stats = Maps.newHashMap();
+    for (byte[] batch : batches) {
+      ByteBuffer buf = ByteBuffer.wrap(batch);
+      assertEquals('J', buf.get());
+      assertEquals('P', buf.get());
+      buf.get();
+      readVarLong(buf);
+      readString(buf);
+      readString(buf);
+      int fields = (int) readVarLong(buf);
+      List<String> dict = Lists.newArrayList();
+      for (long i = readVarLong(buf); i > 0; i--) {
+        dict.add(readString(buf));
+      }
+      for (long i = readVarLong(buf); i > 0; i--) {
+        String uri = dict.get((int) readVarLong(buf)) + readString(buf);
+        long[] values = new long[fields];
+        for (int j = 0; j < fields; j++) {
+          values[j] = readVarLong(buf);
+        }
+        stats.put(uri, values);
+      }
+      assertFalse(buf.hasRemaining());
+    }
+    return stats;
+  }
+
+  private static long readVarLong(ByteBuffer buf) {
+    long v = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buf.get();
+      v |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return v;
+      }
+    }
+  }
+
+  private static String readString(ByteBuffer buf) {
+    byte[] b = new byte[(int) readVarLong(buf)];
+    buf.get(b);
+    return new String(b, Charsets.UTF_8);
+  }
+}
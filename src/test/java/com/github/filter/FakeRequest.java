@@ -0,0 +1,126 @@
+package com.github.filter;
+
+import com.google.common.collect.Maps;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 测试用的请求对象，只实现filter用到的方法，其余方法返回默认值，同时统计request属性的读写次数
+ */
+public final class FakeRequest implements InvocationHandler {
+  private final Map<String, Object> attributes = Maps.newHashMap();
+  private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+  private final Map<String, String> params = Maps.newHashMap();
+  private String method = "GET";
+  private String uri = "/";
+  private String query;
+  private int attributeReads;
+  private int attributeWrites;
+
+  public FakeRequest uri(String uri) {
+    this.uri = uri;
+    return this;
+  }
+
+  public FakeRequest method(String method) {
+    this.method = method;
+    return this;
+  }
+
+  public FakeRequest header(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  public FakeRequest param(String name, String value) {
+    params.put(name, value);
+    query = query == null ? name + '=' + value : query + '&' + name + '=' + value;
+    return this;
+  }
+
+  public HttpServletRequest build() {
+    return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {HttpServletRequest.class}, this);
+  }
+
+  public Object attribute(String name) {
+    return attributes.get(name);
+  }
+
+  public int getAttributeReads() {
+    return attributeReads;
+  }
+
+  public int getAttributeWrites() {
+    return attributeWrites;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+    switch (m.getName()) {
+      case "getAttribute":
+        attributeReads++;
+        return attributes.get((String) args[0]);
+      case "setAttribute":
+        attributeWrites++;
+        if (args[1] == null) {
+          attributes.remove((String) args[0]);
+        } else {
+          attributes.put((String) args[0], args[1]);
+        }
+        return null;
+      case "removeAttribute":
+        attributeWrites++;
+        attributes.remove((String) args[0]);
+        return null;
+      case "getHeader":
+        return headers.get((String) args[0]);
+      case "getHeaders":
+        String h = headers.get((String) args[0]);
+        return h == null ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singleton(h));
+      case "getParameter":
+        return params.get((String) args[0]);
+      case "getMethod":
+        return method;
+      case "getRequestURI":
+      case "getServletPath":
+        return uri;
+      case "getRequestURL":
+        return new StringBuffer("http://localhost").append(uri);
+      case "getQueryString":
+        return query;
+      case "getServerName":
+        return "localhost";
+      case "getServerPort":
+        return 80;
+      case "getRemoteAddr":
+        return "127.0.0.1";
+      case "getContentLength":
+        return -1;
+      case "toString":
+        return "FakeRequest{" + method + ' ' + uri + '}';
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      default:
+        return defaultValue(m.getReturnType());
+    }
+  }
+
+  static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+}
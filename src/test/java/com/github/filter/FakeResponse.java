@@ -0,0 +1,157 @@
+package com.github.filter;
+
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * 测试用的响应对象，记录状态码、header和输出的内容，flushBuffer之后视为已提交
+ */
+public final class FakeResponse implements InvocationHandler {
+  private final ListMultimap<String, String> headers = LinkedListMultimap.create();
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private final ServletOutputStream stream = new ServletOutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      body.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+    }
+  };
+  private PrintWriter writer;
+  private int status = 200;
+  private String contentType;
+  private String characterEncoding;
+  private boolean committed;
+
+  public HttpServletResponse build() {
+    return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {HttpServletResponse.class}, this);
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getHeader(String name) {
+    List<String> values = find(name);
+    return values.isEmpty() ? null : values.get(0);
+  }
+
+  public byte[] getBody() {
+    if (writer != null) {
+      writer.flush();
+    }
+    return body.toByteArray();
+  }
+
+  private List<String> find(String name) {
+    for (String key : headers.keySet()) {
+      if (key.equalsIgnoreCase(name)) {
+        return headers.get(key);
+      }
+    }
+    return Lists.newArrayList();
+  }
+
+  private void setHeader(String name, String value) {
+    find(name).clear();
+    headers.put(name, value);
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+    switch (m.getName()) {
+      case "setStatus":
+        status = (Integer) args[0];
+        return null;
+      case "getStatus":
+        return status;
+      case "sendError":
+        status = (Integer) args[0];
+        committed = true;
+        return null;
+      case "sendRedirect":
+        status = 302;
+        setHeader("Location", (String) args[0]);
+        committed = true;
+        return null;
+      case "setHeader":
+        setHeader((String) args[0], (String) args[1]);
+        return null;
+      case "addHeader":
+        headers.put((String) args[0], (String) args[1]);
+        return null;
+      case "setIntHeader":
+        setHeader((String) args[0], String.valueOf(args[1]));
+        return null;
+      case "addIntHeader":
+        headers.put((String) args[0], String.valueOf(args[1]));
+        return null;
+      case "setContentLength":
+      case "setContentLengthLong":
+        setHeader("Content-Length", String.valueOf(args[0]));
+        return null;
+      case "getHeader":
+        return getHeader((String) args[0]);
+      case "getHeaders":
+        return Lists.newArrayList(find((String) args[0]));
+      case "getHeaderNames":
+        return Lists.newArrayList(headers.keySet());
+      case "containsHeader":
+        return !find((String) args[0]).isEmpty();
+      case "setContentType":
+        contentType = (String) args[0];
+        return null;
+      case "getContentType":
+        return contentType;
+      case "setCharacterEncoding":
+        characterEncoding = (String) args[0];
+        return null;
+      case "getCharacterEncoding":
+        return characterEncoding == null ? "ISO-8859-1" : characterEncoding;
+      case "getOutputStream":
+        return stream;
+      case "getWriter":
+        if (writer == null) {
+          writer = new PrintWriter(new OutputStreamWriter(stream, Charset.forName("UTF-8")));
+        }
+        return writer;
+      case "flushBuffer":
+        if (writer != null) {
+          writer.flush();
+        }
+        committed = true;
+        return null;
+      case "isCommitted":
+        return committed;
+      case "toString":
+        return "FakeResponse{" + status + '}';
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      default:
+        return FakeRequest.defaultValue(m.getReturnType());
+    }
+  }
+}
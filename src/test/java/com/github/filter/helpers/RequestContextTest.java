@@ -0,0 +1,62 @@
+package com.github.filter.helpers;
+
+import com.github.filter.FakeRequest;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 请求上下文建好之后只读写字段，原来的request属性只在setXxx和拆分traceId时各写一次
+ */
+public class RequestContextTest {
+
+  @Test
+  public void testPreambleTouchesFewAttributes() {
+    FakeRequest fake = new FakeRequest().header("x-trace-id", "0123456789abcdef0123:3").header("User-Agent", "Baiduspider");
+    HttpServletRequest req = fake.build();
+    RequestContext ctx = RequestContext.get(req);
+    assertTrue(ctx.getRequestTime(req) > 0);
+    assertTrue(ctx.isSpider(req));
+    assertFalse(ctx.isColorized(req));
+    Pair<String, String> ids = ctx.getTraceIdAndRpcId(req);
+    assertEquals("0123456789abcdef0123", ids.first);
+    assertEquals("3", ids.second);
+    assertEquals("0123456789abcdef0123", ctx.getTraceId(req));
+    ctx.getTraceIdAndRpcId(req);
+    //上下文和开始时间各读一次，上下文和拆分后的traceId各写一次
+    assertEquals(2, fake.getAttributeReads());
+    assertEquals(2, fake.getAttributeWrites());
+    assertEquals("0123456789abcdef0123", fake.attribute(FilterHelpers.TRACE_ID_ATTRIBUTE));
+    assertEquals(null, fake.attribute(FilterHelpers.IS_SPIDER_ATTRIBUTE));
+    assertSame(ctx, RequestContext.get(req));
+    assertEquals(3, fake.getAttributeReads());
+  }
+
+  @Test
+  public void testSettersMirrorAttributes() {
+    FakeRequest fake = new FakeRequest();
+    HttpServletRequest req = fake.build();
+    FilterHelpers.setSpider(req, true);
+    FilterHelpers.setColorized(req, true);
+    FilterHelpers.setUserId(req, "42");
+    assertTrue(FilterHelpers.isSpider(req));
+    assertTrue(FilterHelpers.isColorized(req));
+    assertEquals("42", FilterHelpers.getUserId(req));
+    assertEquals(Boolean.TRUE, fake.attribute(FilterHelpers.IS_SPIDER_ATTRIBUTE));
+    assertEquals(Boolean.TRUE, fake.attribute(FilterHelpers.IS_COLOR_ATTRIBUTE));
+    assertEquals("42", fake.attribute(FilterHelpers.USER_ID_ATTRIBUTE));
+  }
+
+  @Test
+  public void testUpstreamRequestTime() {
+    FakeRequest fake = new FakeRequest();
+    HttpServletRequest req = fake.build();
+    req.setAttribute(FilterHelpers.REQUEST_TIME_ATTRIBUTE, 1000L);
+    assertEquals(1000L, FilterHelpers.getRequestTime(req));
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.filter.helpers;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * traceId的格式要和原来MD5的一样，多线程下不能重复
+ */
+public class TraceIdGeneratorTest {
+  private static final int THREADS = 8;
+  private static final int LOOPS = 50000;
+
+  @Test
+  public void testFormat() {
+    for (int i = 0; i < 1000; i++) {
+      String id = TraceIdGenerator.next();
+      assertEquals(id, 32, id.length());
+      assertTrue(id, id.matches("[0-9a-f]{32}"));
+    }
+  }
+
+  @Test
+  public void testLayout() {
+    long time = 0x0123456789AL;
+    String a = TraceIdGenerator.next(time, 0x7fffffff);
+    String b = TraceIdGenerator.next(time, 0x80000000);
+    assertEquals("00123456789a", a.substring(0, 12));
+    assertEquals("7fffffff", a.substring(24));
+    assertEquals("80000000", b.substring(24));
+    //机器和进程部分固定不变
+    assertEquals(a.substring(12, 24), b.substring(12, 24));
+    assertEquals(a.substring(12, 24), TraceIdGenerator.next().substring(12, 24));
+  }
+
+  @Test
+  public void testTimestampPrefix() {
+    long before = System.currentTimeMillis();
+    String id = TraceIdGenerator.next();
+    long after = System.currentTimeMillis();
+    long stamp = Long.parseLong(id.substring(0, 12), 16);
+    assertTrue(stamp >= before && stamp <= after);
+  }
+
+  @Test
+  public void testSameIpAndPid() {
+    //同一台机器上的两个容器，IP相同，进程号都是1，序号的初始值也相同
+    int node = 0x0A000001;
+    TraceIdGenerator a = new TraceIdGenerator(node, 1, 0x2F6B19C4, 0);
+    TraceIdGenerator b = new TraceIdGenerator(node, 1, 0x71D3A058, 0);
+    long time = System.currentTimeMillis();
+    Set<String> ids = Sets.newHashSet();
+    for (int i = 0; i < LOOPS; i++) {
+      ids.add(a.nextId(time));
+      ids.add(b.nextId(time));
+    }
+    assertEquals(LOOPS * 2, ids.size());
+    String id = a.nextId(time);
+    assertEquals("0a000001", id.substring(12, 20));
+    assertEquals(String.format("%04x", TraceIdGenerator.mix(1, 0x2F6B19C4)), id.substring(20, 24));
+  }
+
+  @Test
+  public void testMixUsesSalt() {
+    //不同的随机盐大多得到不同的进程标识
+    SecureRandom random = new SecureRandom();
+    Set<Integer> seen = Sets.newHashSet();
+    for (int i = 0; i < 256; i++) {
+      int v = TraceIdGenerator.mix(1, random.nextInt());
+      assertTrue(v >= 0 && v <= 0xFFFF);
+      seen.add(v);
+    }
+    assertTrue(String.valueOf(seen.size()), seen.size() > 240);
+  }
+
+  @Test
+  public void testUnique() throws Exception {
+    final Set<String> ids = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>(THREADS * LOOPS * 2));
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < LOOPS; i++) {
+            ids.add(TraceIdGenerator.next());
+          }
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(THREADS * LOOPS, ids.size());
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.filter.io;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 单次扫描的编码检测必须和原来逐段解码、靠异常判定的实现结果一致
+ */
+public class CharsetDetectorTest {
+  private static final Charset GBK = Charset.forName("GBK");
+  private static final String[] WORDS = {"中文", "測試", "你好世界", "𝄞", "é", "ab c", "搜索"};
+
+  @Test
+  public void testKnownCases() {
+    assertEquals("UTF-8", CharsetDetector.detect(null));
+    assertEquals("UTF-8", CharsetDetector.detect(""));
+    assertEquals("UTF-8", CharsetDetector.detect("q=abc&page=2"));
+    assertEquals("UTF-8", CharsetDetector.detect("q=" + encode("中文", Charsets.UTF_8)));
+    assertEquals("GBK", CharsetDetector.detect("q=" + encode("中文", GBK)));
+    assertEquals("GBK", CharsetDetector.detect("ie=gbk&q=" + encode("搜索", GBK) + "&from=index"));
+    //被截断的%不算错
+    assertEquals("UTF-8", CharsetDetector.detect("q=" + encode("中文", GBK) + "%D"));
+    //两种编码都不合法时按UTF-8处理
+    assertEquals("UTF-8", CharsetDetector.detect("q=%FF%FF"));
+  }
+
+  @Test
+  public void testUtf8MatchesDecoder() {
+    Random random = new Random(20150423);
+    for (int i = 0; i < 200000; i++) {
+      byte[] bytes = new byte[random.nextInt(8)];
+      random.nextBytes(bytes);
+      String query = encode(bytes, random);
+      assertEquals(query, strictDecode(bytes, Charsets.UTF_8), CharsetDetector.isUtf8(query));
+      assertEquals(query, strictDecode(bytes, GBK), CharsetDetector.isGbk(query));
+    }
+  }
+
+  @Test
+  public void testMatchesLegacy() {
+    Random random = new Random(20151027);
+    for (int i = 0; i < 300000; i++) {
+      String query = randomQuery(random);
+      assertEquals(query, LegacyCharsetDetector.detectURLCharset(query), CharsetDetector.detect(query));
+    }
+  }
+
+  /**
+   * 混合UTF-8和GBK编码的中文、随机字节、普通参数、不完整的%以及直接出现的非ASCII字符
+   */
+  private static String randomQuery(Random random) {
+    StringBuilder sbd = new StringBuilder();
+    int len = random.nextInt(12);
+    for (int k = 0; k < len; k++) {
+      int kind = random.nextInt(10);
+      if (kind < 3) {
+        String w = WORDS[random.nextInt(WORDS.length)];
+        sbd.append(encode(w.getBytes(random.nextBoolean() ? Charsets.UTF_8 : GBK), random));
+      } else if (kind < 5) {
+        sbd.append(String.format("%%%02X", random.nextInt(256)));
+      } else if (kind < 6) {
+        sbd.append("q=x&");
+      } else if (kind < 7) {
+        sbd.append('%');
+        if (random.nextBoolean()) {
+          sbd.append('4');
+        }
+      } else if (kind < 8) {
+        sbd.append((char) (0x100 + random.nextInt(0x5000)));
+      } else if (kind < 9) {
+        sbd.append('%').append(random.nextBoolean() ? '中' : 'z').append('1');
+      } else {
+        sbd.append((char) random.nextInt(256));
+      }
+    }
+    return sbd.toString();
+  }
+
+  private static String encode(String s, Charset charset) {
+    return encode(s.getBytes(charset), new Random(0));
+  }
+
+  /**
+   * 百分号编码，随机用大写或小写的16进制
+   */
+  private static String encode(byte[] bytes, Random random) {
+    StringBuilder sbd = new StringBuilder(bytes.length * 3);
+    for (byte b : bytes) {
+      sbd.append(String.format(random.nextBoolean() ? "%%%02X" : "%%%02x", b & 0xFF));
+    }
+    return sbd.toString();
+  }
+
+  private static boolean strictDecode(byte[] bytes, Charset charset) {
+    try {
+      charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes));
+      return true;
+    } catch (CharacterCodingException e) {
+      return false;
+    }
+  }
+}
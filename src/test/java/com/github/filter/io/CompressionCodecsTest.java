@@ -0,0 +1,68 @@
+package com.github.filter.io;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Accept-Encoding按逗号分隔的token和q值协商，不能靠子串匹配
+ */
+public class CompressionCodecsTest {
+  private static final CompressionCodec ZSTD = new CompressionCodec() {
+    @Override
+    public String getEncoding() {
+      return "zstd";
+    }
+
+    @Override
+    public java.io.OutputStream compress(java.io.OutputStream out, int level, int strategy) {
+      return out;
+    }
+  };
+  private final List<CompressionCodec> preferred = ImmutableList.of(ZSTD, CompressionCodecs.GZIP);
+
+  @Test
+  public void testQuality() {
+    assertSame(ZSTD, CompressionCodecs.negotiate("gzip, deflate, br, zstd", preferred));
+    assertSame(CompressionCodecs.GZIP, CompressionCodecs.negotiate("gzip, zstd;q=0.5", preferred));
+    assertSame(CompressionCodecs.GZIP, CompressionCodecs.negotiate("zstd;level=1;q=0.2, gzip ; q=0.8", preferred));
+    assertSame(ZSTD, CompressionCodecs.negotiate("GZIP;Q=0.5, ZSTD", preferred));
+    assertNull(CompressionCodecs.negotiate("identity", preferred));
+    assertNull(CompressionCodecs.negotiate("", preferred));
+    assertNull(CompressionCodecs.negotiate(null, preferred));
+  }
+
+  @Test
+  public void testTokensNotSubstrings() {
+    //x-gzip和gzip2都不是gzip
+    assertNull(CompressionCodecs.negotiate("x-gzip, gzip2", preferred));
+    assertSame(CompressionCodecs.GZIP, CompressionCodecs.negotiate("x-zstd, gzip", preferred));
+  }
+
+  @Test
+  public void testWildcardHonorsExclusion() {
+    assertSame(ZSTD, CompressionCodecs.negotiate("*", preferred));
+    //q=0明确拒绝的算法不能再被'*'选中
+    assertSame(CompressionCodecs.GZIP, CompressionCodecs.negotiate("zstd;q=0, *", preferred));
+    assertNull(CompressionCodecs.negotiate("zstd;q=0, gzip;q=0, *", preferred));
+    //子串里带gzip的其他token不算明确列出
+    assertSame(CompressionCodecs.GZIP, CompressionCodecs.negotiate("zstd;q=0, x-gzip;q=0, *;q=0.5", preferred));
+    assertNull(CompressionCodecs.negotiate("*;q=0", preferred));
+    //'*'的q值更高时优先于明确列出的低q值算法
+    assertSame(ZSTD, CompressionCodecs.negotiate("gzip;q=0.1, *", preferred));
+    assertSame(CompressionCodecs.GZIP, CompressionCodecs.negotiate("gzip, *;q=0.5", preferred));
+  }
+
+  @Test
+  public void testRegistry() {
+    assertSame(CompressionCodecs.GZIP, CompressionCodecs.get(" GZIP "));
+    assertSame(CompressionCodecs.DEFLATE, CompressionCodecs.get("deflate"));
+    assertNull(CompressionCodecs.get("br"));
+    assertEquals("zstd", CompressionCodecs.get("zstd").getEncoding());
+  }
+}
@@ -0,0 +1,46 @@
+package com.github.filter.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 跨越堆外块和堆内块的内容必须原样输出
+ */
+public class DirectChunkedOutputStreamTest {
+  @Test
+  public void testWriteToAcrossChunks() throws Exception {
+    Random random = new Random(20160311);
+    //两个堆外块，其余落到BufferPool的堆内块
+    DirectChunkedOutputStream buf = new DirectChunkedOutputStream(DirectBufferPool.getInstance(), 2 * DirectBufferPool.CHUNK_SIZE);
+    try {
+      for (int size : new int[] {0, 1, DirectBufferPool.CHUNK_SIZE, DirectBufferPool.CHUNK_SIZE * 2 + 17, DirectBufferPool.CHUNK_SIZE * 5 + 3}) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        buf.reset();
+        int off = 0;
+        while (off < size) {
+          if (random.nextInt(8) == 0) {
+            buf.write(data[off++]);
+          } else {
+            int n = Math.min(size - off, random.nextInt(DirectBufferPool.CHUNK_SIZE));
+            buf.write(data, off, n);
+            off += n;
+          }
+        }
+        assertEquals(size, buf.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buf.writeTo(out);
+        assertTrue("size " + size, Arrays.equals(data, out.toByteArray()));
+        assertTrue("size " + size, Arrays.equals(data, buf.toByteArray()));
+      }
+    } finally {
+      buf.release();
+    }
+  }
+}
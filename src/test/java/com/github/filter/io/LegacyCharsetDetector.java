@@ -0,0 +1,99 @@
+package com.github.filter.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 改造前CharsetDetectRequestWrapper里逐段解码、靠异常判定的实现，作为{@link CharsetDetector}的对照
+ */
+final class LegacyCharsetDetector {
+  private static final Charset GBK = Charset.forName("GBK");
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int[] HEX2BYTE_CONVERT = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      if (i >= 'A' && i <= 'F') {
+        HEX2BYTE_CONVERT[i] = i - 'A' + 10;
+      } else if (i >= 'a' && i <= 'f') {
+        HEX2BYTE_CONVERT[i] = i - 'a' + 10;
+      } else if (i >= '0' && i <= '9') {
+        HEX2BYTE_CONVERT[i] = i - '0';
+      } else {
+        HEX2BYTE_CONVERT[i] = 0;
+      }
+    }
+  }
+
+  private LegacyCharsetDetector() {
+  }
+
+  private static int hex2byte(char hi, char lo) {
+    return (HEX2BYTE_CONVERT[hi] << 4) + HEX2BYTE_CONVERT[lo];
+  }
+
+  static String detectURLCharset(String query) {
+    try {
+      isURLEncoded(query, UTF8);
+      return "UTF-8";
+    } catch (Exception e) {
+      try {
+        isURLEncoded(query, GBK);
+      } catch (CharacterCodingException e1) {
+        return "UTF-8";
+      }
+      return "GBK";
+    }
+  }
+
+  static boolean isURLEncoded(String str, Charset charset) throws CharacterCodingException {
+    if (str == null || str.length() == 0)
+      return true;
+    //找到第一个百分号
+    int pos = str.indexOf('%');
+    if (pos > -1) {
+      str = str.substring(pos);
+    }
+    int numChars = str.length();
+    int trySize = numChars > 512 ? numChars / 2 : numChars;
+    ByteArrayOutputStream bout = new ByteArrayOutputStream(trySize);
+    for (int i = 0; i < numChars; i++) {
+      char ch = str.charAt(i);
+      if (ch == '%') {
+        if (i + 2 >= numChars) {
+          //url可能因为长度限制被截断，这里就不抛异常，避免误判
+          return true;
+        } else {
+          char c1 = str.charAt(i + 1), c2 = str.charAt(i + 2);
+          if (c1 > 255) {
+            i++;
+          } else if (c2 > 255) {
+            i += 2;
+          } else {
+            bout.write(hex2byte(c1, c2));
+            i += 2;
+          }
+        }
+      } else if (ch > '\u00FF') {
+        //非ascii字符直接不decode了
+        bytes2str(bout.toByteArray(), charset);
+        bout.reset();
+      }
+    }
+    bytes2str(bout.toByteArray(), charset);
+    return true;
+  }
+
+  private static String bytes2str(byte[] bytes, Charset charset) throws CharacterCodingException {
+    CharsetDecoder dec = charset.newDecoder();
+    dec.onMalformedInput(CodingErrorAction.REPORT);
+    dec.onUnmappableCharacter(CodingErrorAction.REPORT);
+    CharBuffer cb = dec.decode(ByteBuffer.wrap(bytes));
+    return cb.toString();
+  }
+}
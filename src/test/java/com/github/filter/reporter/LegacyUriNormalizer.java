@@ -0,0 +1,33 @@
+package com.github.filter.reporter;
+
+import java.util.regex.Pattern;
+
+/**
+ * 改造前PageStatusReporter.getFormalURI的正则实现，作为{@link UriNormalizer}的对照
+ */
+final class LegacyUriNormalizer {
+  private static final Pattern NUM_PATTERN = Pattern.compile("[0-9]{2,}");
+  private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+
+  private LegacyUriNormalizer() {
+  }
+
+  static String normalize(String uri) {
+    if (uri == null || uri.length() == 0 || uri.equals("/")) {
+      return "/";
+    } else {
+      //部分请求用';'分割，后面是请求参数
+      int pos = uri.indexOf(';');
+      if (pos != -1) {
+        uri = uri.substring(0, pos);
+      }
+      //百科的部分页面用了MD5作为.htm的前缀
+      String s = MD5_PATTERN.matcher(uri).replaceFirst("*");
+      if (s.length() != uri.length()) {
+        return s;
+      }
+      //问问和百科的部分页面都用了一些数字id作为.htm的前缀
+      return NUM_PATTERN.matcher(uri).replaceAll("*");
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package com.github.filter.reporter;
+
+import com.github.filter.helpers.Pair;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分散计数器在多线程下的计数要精确，取走计数时不能丢数据
+ */
+public class UriCounterTest {
+  private static final int THREADS = 16;
+  private static final int LOOPS = 50000;
+
+  @Test
+  public void testRecordIsExact() throws Exception {
+    final UriCounter cnt = new UriCounter();
+    runConcurrently(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < LOOPS; i++) {
+          record(cnt, i);
+        }
+      }
+    });
+    long total = (long) THREADS * LOOPS;
+    assertEquals(total, cnt.get(UriCounter.TOTAL_PV));
+    assertEquals(total / 4, cnt.get(UriCounter.SPIDER_PV));
+    assertEquals(total / 4, cnt.get(UriCounter.PV_50X));
+    assertEquals(total / 4, cnt.get(UriCounter.PV_40X));
+    assertEquals(total / 4, cnt.get(UriCounter.PV_30X));
+    assertEquals(total / 4, cnt.get(UriCounter.PV_20X));
+    assertEquals(total / 4, cnt.get(UriCounter.PV_304));
+    //爬虫的请求都是200，失败的都不是爬虫
+    assertEquals(total / 2, cnt.get(UriCounter.FAIL_PV));
+    assertEquals(total * 10, cnt.get(UriCounter.TOTAL_COST_US));
+    assertEquals(total, cnt.get(UriCounter.PRE_CHAIN_US));
+    assertEquals(total * 8, cnt.get(UriCounter.CHAIN_US));
+    assertEquals(total, cnt.get(UriCounter.COPY_US));
+    long[] p = cnt.getLatency().percentiles(0.5, 1.0);
+    assertEquals(10, p[0]);
+    assertEquals(10, p[1]);
+  }
+
+  @Test
+  public void testDrainLosesNothing() throws Exception {
+    final UriCounter cnt = new UriCounter();
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final UriCounter drained = new UriCounter();
+    Thread reporter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running.get()) {
+          drained.add(cnt.drain());
+        }
+      }
+    });
+    reporter.start();
+    runConcurrently(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < LOOPS; i++) {
+          record(cnt, i);
+        }
+      }
+    });
+    running.set(false);
+    reporter.join();
+    drained.add(cnt.drain());
+    long total = (long) THREADS * LOOPS;
+    assertEquals(total, drained.get(UriCounter.TOTAL_PV));
+    assertEquals(total / 2, drained.get(UriCounter.FAIL_PV));
+    assertEquals(total * 10, drained.get(UriCounter.TOTAL_COST_US));
+    assertEquals(0, cnt.get(UriCounter.TOTAL_PV));
+    assertEquals(0, cnt.getLatency().percentiles(1.0)[0]);
+    assertEquals(10, drained.getLatency().percentiles(1.0)[0]);
+  }
+
+  @Test
+  public void testStatTableSharesCounter() throws Exception {
+    final StatTable table = new StatTable();
+    final UriCounter[] seen = new UriCounter[THREADS];
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      final int idx = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          seen[idx] = table.getOrCreate("/q/" + idx + "00.htm", "/q/*.htm");
+          seen[idx].record(1, 0, 1, 0, 200, false);
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (int t = 0; t < THREADS; t++) {
+      assertSame(seen[0], seen[t]);
+      assertSame(seen[0], table.getByRawUri("/q/" + t + "00.htm"));
+    }
+    assertEquals(1, table.size());
+    List<Pair<String, UriCounter>> snapshots = table.drain();
+    assertEquals(1, snapshots.size());
+    assertEquals("/q/*.htm", snapshots.get(0).first);
+    assertEquals(THREADS, snapshots.get(0).second.get(UriCounter.TOTAL_PV));
+  }
+
+  @Test
+  public void testPruneKeepsLateWrites() {
+    StatTable table = new StatTable();
+    UriCounter stale = table.getOrCreate("/a/1.htm", "/a/*.htm");
+    UriCounter gone = table.getOrCreate("/b/1.htm", "/b/*.htm");
+    stale.record(1, 0, 1, 0, 200, false);
+    gone.record(1, 0, 1, 0, 200, false);
+    assertEquals(2, table.drain().size());
+    for (int i = 0; i < StatTable.MAX_IDLE_ROUNDS; i++) {
+      assertEquals(0, table.drain().size());
+    }
+    assertEquals(2, table.prune());
+    assertEquals(0, table.size());
+    //删除之前拿到引用的写入方在删除之后才写
+    stale.record(1, 0, 1, 0, 200, false);
+    gone.record(1, 0, 1, 0, 404, false);
+    //同一个URI又有新请求，重新创建了计数器
+    UriCounter fresh = table.getOrCreate("/a/1.htm", "/a/*.htm");
+    assertTrue(fresh != stale);
+    fresh.record(1, 0, 1, 0, 200, false);
+    Map<String, UriCounter> snapshots = Maps.newHashMap();
+    for (Pair<String, UriCounter> kv : table.drain()) {
+      snapshots.put(kv.first, kv.second);
+    }
+    assertEquals(2, snapshots.size());
+    assertEquals(2, snapshots.get("/a/*.htm").get(UriCounter.TOTAL_PV));
+    assertEquals(1, snapshots.get("/b/*.htm").get(UriCounter.PV_40X));
+    //只在删除后的下一轮再取一次，之后不再持有这个计数器
+    stale.record(1, 0, 1, 0, 200, false);
+    assertEquals(0, table.drain().size());
+  }
+
+  /**
+   * 四种状态码轮流出现，200的请求都是爬虫
+   */
+  private static void record(UriCounter cnt, int i) {
+    switch (i & 3) {
+      case 0:
+        cnt.record(10, 1, 8, 1, 200, true);
+        break;
+      case 1:
+        cnt.record(10, 1, 8, 1, 304, false);
+        break;
+      case 2:
+        cnt.record(10, 1, 8, 1, 404, false);
+        break;
+      default:
+        cnt.record(10, 1, 8, 1, 502, false);
+        break;
+    }
+  }
+
+  private static void runConcurrently(final Runnable task) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          task.run();
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+}
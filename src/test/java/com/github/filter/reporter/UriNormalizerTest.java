@@ -0,0 +1,82 @@
+package com.github.filter.reporter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 单次扫描的URI归一化必须和原来的正则实现逐字节一致
+ */
+public class UriNormalizerTest {
+  /**
+   * 随机URI的字符表，16进制字符和数字占大头，容易拼出长的数字串和32位16进制串
+   */
+  private static final String ALPHABET = "0123456789abcdefABCDEF0123456789/.;-_gxyzGZ中";
+  private static final String MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+
+  @Test
+  public void testKnownCases() {
+    assertEquals("/", UriNormalizer.normalize(null));
+    assertEquals("/", UriNormalizer.normalize(""));
+    assertEquals("/", UriNormalizer.normalize("/"));
+    assertEquals("/q/*.htm", UriNormalizer.normalize("/q/12345.htm"));
+    assertEquals("/q/1.htm", UriNormalizer.normalize("/q/1.htm"));
+    assertEquals("/a*/b*/c", UriNormalizer.normalize("/a12/b345/c;jsessionid=42"));
+    assertEquals("/item/*.htm", UriNormalizer.normalize("/item/" + MD5 + ".htm"));
+    //只替换最左边的32位16进制串，其余的数字也不再替换
+    assertEquals("/v12/*0/" + MD5 + ".htm", UriNormalizer.normalize("/v12/" + MD5 + "0/" + MD5 + ".htm"));
+    assertEquals("/p/*", UriNormalizer.normalize("/p/" + MD5.toUpperCase()));
+    assertEquals("/p/*", UriNormalizer.normalize("/p/" + MD5.substring(0, 31) + "1"));
+    assertEquals("/p/9e*d9d*bb*bd*d*a*d", UriNormalizer.normalize("/p/" + MD5.substring(0, 31)));
+    assertEquals("", UriNormalizer.normalize(";a=1"));
+  }
+
+  @Test
+  public void testMatchesRegex() {
+    String[] fixed = {null, "", "/", ";", "/;12", "12", "/12", "1", "/a/b/c.htm", "/q/12345.htm", "/a1b22c333", "/item/" + MD5 + ".htm",
+        "/item/" + MD5 + MD5, "/x" + MD5.substring(0, 31) + "g" + MD5, "/中文/123", "/12;" + MD5};
+    for (String uri : fixed) {
+      assertEquals(uri, LegacyUriNormalizer.normalize(uri), UriNormalizer.normalize(uri));
+    }
+    Random random = new Random(20151027);
+    for (int i = 0; i < 200000; i++) {
+      String uri = randomUri(random);
+      assertEquals(uri, LegacyUriNormalizer.normalize(uri), UriNormalizer.normalize(uri));
+    }
+  }
+
+  @Test
+  public void testCached() {
+    String uri = "/cached/" + System.nanoTime() + ".htm";
+    String formal = UriNormalizer.cached(uri);
+    assertEquals(LegacyUriNormalizer.normalize(uri), formal);
+    assertSame(formal, UriNormalizer.cached(uri));
+    assertEquals("/", UriNormalizer.cached(null));
+  }
+
+  private static String randomUri(Random random) {
+    StringBuilder sbd = new StringBuilder();
+    if (random.nextBoolean()) {
+      sbd.append('/');
+    }
+    int len = random.nextInt(80);
+    while (sbd.length() < len) {
+      int kind = random.nextInt(10);
+      if (kind == 0) {
+        //30到34位的16进制串，覆盖刚好不够、刚好够和超出的情况
+        int n = 30 + random.nextInt(5);
+        for (int i = 0; i < n; i++) {
+          sbd.append(MD5.charAt(random.nextInt(MD5.length())));
+        }
+      } else if (kind == 1) {
+        sbd.append(random.nextInt(100000));
+      } else {
+        sbd.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+      }
+    }
+    return sbd.toString();
+  }
+}
@@ -0,0 +1,67 @@
+package com.github.filter.sampler;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 自定义Sampler通过无参构造函数创建，配置错误时不采样，也不影响filter初始化
+ */
+public class SamplersTest {
+  public static class AlwaysSampler implements Sampler {
+    @Override
+    public boolean sampleOnEntry(HttpServletRequest request, String uri) {
+      return true;
+    }
+
+    @Override
+    public boolean sampleOnExit(HttpServletRequest request, String uri, boolean sampled, int status, long cost) {
+      return true;
+    }
+  }
+
+  public static class NoDefaultConstructor extends AlwaysSampler {
+    public NoDefaultConstructor(int rate) {
+    }
+  }
+
+  public static class FailingSampler extends AlwaysSampler {
+    public FailingSampler() {
+      throw new IllegalStateException("boom");
+    }
+  }
+
+  @Test
+  public void testSamplerClass() {
+    assertTrue(Samplers.from(config(AlwaysSampler.class.getName())) instanceof AlwaysSampler);
+    assertTrue(Samplers.from(config(" " + AlwaysSampler.class.getName() + " ")) instanceof AlwaysSampler);
+  }
+
+  @Test
+  public void testIllegalSamplerClass() {
+    assertNull(Samplers.from(config("com.github.filter.sampler.NoSuchSampler")));
+    assertNull(Samplers.from(config(String.class.getName())));
+    assertNull(Samplers.from(config(NoDefaultConstructor.class.getName())));
+    assertNull(Samplers.from(config(FailingSampler.class.getName())));
+    assertNull(Samplers.from(config(Sampler.class.getName())));
+  }
+
+  private static FilterConfig config(String samplerClass) {
+    final Map<String, String> params = ImmutableMap.of("samplerClass", samplerClass);
+    return (FilterConfig) Proxy.newProxyInstance(SamplersTest.class.getClassLoader(), new Class[] {FilterConfig.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+        return "getInitParameter".equals(m.getName()) ? params.get((String) args[0]) : null;
+      }
+    });
+  }
+}